@@ -0,0 +1,74 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The mean distance between two clusters of half the points each and the search
+ * of the two nearest clusters by HierarchicalClustering among numPoints clusters
+ * of one point, over the distances of synthetic points of the specified dimension.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class ClusteringBenchmark
+{
+
+  private static final Class clusteringType = Reflect.type("HierarchicalClustering");
+  private static final Class clusterType = Reflect.type("Cluster");
+
+  // Cluster.meanDistance(Cluster)
+  private static final MethodHandle meanDistance = Reflect.erase(Reflect.method(clusterType, "meanDistance", new Class[] {clusterType}));
+  // HierarchicalClustering.findNearest()
+  private static final MethodHandle findNearest = Reflect.erase(Reflect.method(clusteringType, "findNearest", new Class[0]));
+
+  @Param({"1000"})
+  public int numPoints;
+
+  @Param({"8"})
+  public int dimension;
+
+  private Object clustering;          // the HierarchicalClustering of the points
+  private Object first;               // a Cluster of the first half of the points
+  private Object second;              // a Cluster of the other half
+
+  @Setup
+  public void setup() throws Throwable
+  {
+    double[][] points = SyntheticData.points(numPoints, dimension, 16, 0.1, 1);
+    File file = SyntheticData.writeDistances(points);
+    clustering = Reflect.create(clusteringType, new Class[0], new Object[0]);
+    Reflect.method(clusteringType, "init", new Class[] {String.class}).invoke(clustering, file.getPath());
+
+    MethodHandle merge = Reflect.method(clusterType, "merge", new Class[] {clusterType});
+    Class[] parameters = {int.class, int.class};
+    first = Reflect.create(clusterType, parameters, new Object[] {0, numPoints});
+    second = Reflect.create(clusterType, parameters, new Object[] {numPoints/2, numPoints + 1});
+    for (int i=1; i < numPoints/2; i++)
+      merge.invoke(first, Reflect.create(clusterType, parameters, new Object[] {i, numPoints + 1 + i}));
+    for (int i=numPoints/2 + 1; i < numPoints; i++)
+      merge.invoke(second, Reflect.create(clusterType, parameters, new Object[] {i, numPoints + 1 + i}));
+  }
+
+  @Benchmark
+  public double meanDistance() throws Throwable
+  {
+    return (double) meanDistance.invokeExact(first, second);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object findNearest() throws Throwable
+  {
+    return (Object) findNearest.invokeExact(clustering);
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import gibbs.*;
+
+/**
+ * The weight PatternFinder gives to every segment of a sequence, as in one
+ * sampling step, over numSequences synthetic sequences of the specified length
+ * holding a motif of length patternLength.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class GibbsBenchmark
+{
+
+  public static final int ENGLISH = 0;    // alphabet of the sequences for PatternFinder
+
+  // PatternFinder.computeWeight(int, int)
+  private static final MethodHandle computeWeight = Reflect.method(PatternFinder.class, "computeWeight", new Class[] {int.class, int.class});
+
+  @Param({"20"})
+  public int numSequences;
+
+  @Param({"400"})
+  public int length;
+
+  @Param({"18"})
+  public int patternLength;
+
+  private PatternFinder finder;
+  private int sequence;                   // the next sequence to weigh
+
+  @Setup
+  public void setup() throws Throwable
+  {
+    File file = SyntheticData.writeSequences(numSequences, length, patternLength, 1);
+    finder = new PatternFinder(file.getPath(), patternLength, ENGLISH);
+    // random starting points and the model they give
+    Reflect.method(PatternFinder.class, "init", new Class[0]).invoke(finder);
+  }
+
+  /**
+   * The weight of every segment of one sequence
+  **/
+  @Benchmark
+  public double computeWeight() throws Throwable
+  {
+    sequence = (sequence + 1) % numSequences;
+    double sum = 0;
+    for (int spos=0; spos < length - patternLength; spos++)
+      sum = sum + (double) computeWeight.invokeExact(finder, sequence, spos);
+    return sum;
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package benchmarks;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The distance between two PointND and a whole run of kMeans
+ * on numPoints synthetic points of the specified dimension drawn around k centers.
+ * Each run is seeded with SEED so that it starts from the same initial means,
+ * and so takes as many iterations, every time it is timed.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KMeansBenchmark
+{
+
+  public static final long SEED = 1;  // seed of the initial means of each run
+
+  private static final Class pointType = Reflect.type("PointND");
+  private static final Class kMeansType = Reflect.type("kMeans");
+
+  // PointND.dist(PointND)
+  private static final MethodHandle dist = Reflect.erase(Reflect.method(pointType, "dist", new Class[] {pointType}));
+  // new kMeans()
+  private static final MethodHandle newKMeans = Reflect.erase(Reflect.constructor(kMeansType, new Class[0]));
+  // kMeans.setSeed(long)
+  private static final MethodHandle setSeed = Reflect.erase(Reflect.method(kMeansType, "setSeed", new Class[] {long.class}));
+  // kMeans.run(PointND[], int, double)
+  private static final MethodHandle run = Reflect.erase(Reflect.method(kMeansType, "run",
+                                            new Class[] {Array.newInstance(pointType, 0).getClass(), int.class, double.class}));
+
+  @Param({"10000"})
+  public int numPoints;
+
+  @Param({"2", "16"})
+  public int dimension;
+
+  @Param({"8"})
+  public int k;
+
+  private Object[] points;            // the PointND
+
+  @Setup
+  public void setup() throws Throwable
+  {
+    double[][] coordinates = SyntheticData.points(numPoints, dimension, k, 0.05, 1);
+    MethodHandle setCoordinate = Reflect.method(pointType, "setCoordinate", new Class[] {int.class, double.class});
+    points = (Object[]) Array.newInstance(pointType, numPoints);
+    for (int i=0; i < numPoints; i++)
+    {
+      points[i] = Reflect.create(pointType, new Class[] {int.class}, new Object[] {dimension});
+      for (int j=0; j < dimension; j++)
+        setCoordinate.invoke(points[i], j, coordinates[i][j]);
+    }
+  }
+
+  /**
+   * The distance of each point to the next one
+  **/
+  @Benchmark
+  public double dist() throws Throwable
+  {
+    double sum = 0;
+    for (int i=1; i < numPoints; i++)
+      sum = sum + (double) dist.invokeExact(points[i-1], points[i]);
+    return sum;
+  }
+
+  /**
+   * A run of k-means until the means move by less than 0.01
+  **/
+  @Benchmark
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 3)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object run() throws Throwable
+  {
+    Object algorithm = (Object) newKMeans.invokeExact();
+    setSeed.invokeExact(algorithm, SEED);
+    run.invokeExact(algorithm, (Object) points, k, 0.01);
+    return algorithm;
+  }
+}
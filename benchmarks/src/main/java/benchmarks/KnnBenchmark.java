@@ -0,0 +1,99 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The distance of kNNExample and the test of a single example by kNN
+ * on a synthetic data set of trainSetSize examples of the specified dimension,
+ * queried by NUM_QUERIES more examples in turn.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KnnBenchmark
+{
+
+  public static final int NUM_QUERIES = 256;  // number of test examples queried in turn
+
+  private static final Class kNNType = Reflect.type("kNN");
+  private static final Class exampleType = Reflect.type("kNNExample");
+
+  // kNNExample.setRelativeDist(kNNExample, kNNMetric)
+  private static final MethodHandle setRelativeDist = Reflect.erase(Reflect.method(exampleType, "setRelativeDist",
+                                                        new Class[] {exampleType, Reflect.type("kNNMetric")}));
+  // kNN.testSingle(kNNMatrix, int, int, int)
+  private static final MethodHandle testSingle = Reflect.erase(Reflect.method(kNNType, "testSingle",
+                                                   new Class[] {Reflect.type("kNNMatrix"), int.class, int.class, int.class}));
+
+  @Param({"5000"})
+  public int trainSetSize;
+
+  @Param({"8", "58"})
+  public int dimension;
+
+  @Param({"10"})
+  public int k;
+
+  private Object model;                 // the kNN
+  private Object[] trainSet;            // its kNNExample of the training set
+  private Object[] testSet;             // its kNNExample of the test set
+  private Object testMatrix;            // its kNNMatrix of the test set
+  private Object metric;                // its kNNMetric
+  private int query;                    // the next test example to query
+
+  @Setup
+  public void setup() throws IOException
+  {
+    double[][] points = SyntheticData.points(trainSetSize + NUM_QUERIES, dimension, 16, 0.1, 1);
+    File file = SyntheticData.writeDataSet(points, SyntheticData.labels(points));
+    Class dataSetType = Reflect.type("ann.DataSet");
+    Object dataSet = Reflect.create(dataSetType, new Class[] {String.class}, new Object[] {file.getPath()});
+    model = Reflect.create(kNNType, new Class[] {dataSetType, int.class}, new Object[] {dataSet, trainSetSize});
+    trainSet = (Object[]) Reflect.get(model, "trainSet");
+    testSet = (Object[]) Reflect.get(model, "testSet");
+    testMatrix = Reflect.get(model, "testMatrix");
+    metric = Reflect.get(model, "metric");
+
+    // what test() sets up before testing the examples one by one
+    Reflect.set(model, "k", new int[] {k});
+    Reflect.set(model, "kernel", new int[] {1});
+    Reflect.set(model, "numCorrect", new int[1][1]);
+    Reflect.set(model, "squaredError", new double[1][1]);
+  }
+
+  /**
+   * The distance of every example of the training set to one query
+  **/
+  @Benchmark
+  public void setRelativeDist() throws Throwable
+  {
+    Object queryExample = testSet[nextQuery()];
+    for (int i=0; i < trainSet.length; i++)
+      setRelativeDist.invokeExact(trainSet[i], queryExample, metric);
+  }
+
+  /**
+   * The search of the neighbors of one query and its predictions
+  **/
+  @Benchmark
+  public Object testSingle() throws Throwable
+  {
+    return (Object) testSingle.invokeExact(model, testMatrix, nextQuery(), 0, -1);
+  }
+
+  private int nextQuery()
+  {
+    query = (query + 1) % NUM_QUERIES;
+    return query;
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The stochastic training of a NeuralNet with one hidden layer for a few epochs
+ * on a synthetic data set of numExamples examples of the specified dimension.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1)
+public class NeuralNetBenchmark
+{
+
+  public static final int STOCHASTIC_MODE = 1;  // NeuralNet.STOCHASTICMODE
+
+  private static final Class netType = Reflect.type("NeuralNet");
+  private static final Class dataSetType = Reflect.type("DataSet");
+
+  // new NeuralNet(int, int[], double, double, int)
+  private static final MethodHandle newNet = Reflect.erase(Reflect.constructor(netType,
+                                               new Class[] {int.class, int[].class, double.class, double.class, int.class}));
+  // NeuralNet.iterativeTrain(DataSet, DataSet, int, FileWriter)
+  private static final MethodHandle iterativeTrain = Reflect.erase(Reflect.method(netType, "iterativeTrain",
+                                                       new Class[] {dataSetType, dataSetType, int.class, FileWriter.class}));
+
+  @Param({"1000"})
+  public int numExamples;
+
+  @Param({"57"})
+  public int dimension;
+
+  @Param({"8"})
+  public int hidden;
+
+  @Param({"5"})
+  public int epochs;
+
+  private Object dataSet;             // the DataSet used both to train and to evaluate
+  private FileWriter out;             // where the accuracy is reported
+
+  @Setup
+  public void setup() throws IOException
+  {
+    double[][] points = SyntheticData.points(numExamples, dimension, 16, 0.1, 1);
+    File file = SyntheticData.writeDataSet(points, SyntheticData.labels(points));
+    dataSet = Reflect.create(dataSetType, new Class[] {String.class}, new Object[] {file.getPath()});
+    File report = File.createTempFile("report", ".txt");
+    report.deleteOnExit();
+    out = new FileWriter(report);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException
+  {
+    out.close();
+  }
+
+  /**
+   * The training of a new network (its creation included)
+  **/
+  @Benchmark
+  public Object iterativeTrain() throws Throwable
+  {
+    Object net = (Object) newNet.invokeExact(3, new int[] {dimension, hidden, 1}, 0.1, 0.01, STOCHASTIC_MODE);
+    iterativeTrain.invokeExact(net, dataSet, dataSet, epochs, (Object) out);
+    return net;
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package benchmarks;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+/**
+ * Access to the classes of the default package, which the benchmarks
+ * cannot import, and to their private members.
+ * The handles called by a benchmark are looked up once into static final
+ * fields, which the JIT compiler treats as constants so it can inline their
+ * targets, and are called with invokeExact. Since the benchmarks cannot name
+ * the classes of the default package, erase gives the handles a type made of
+ * Object and primitives only, which a call site can match exactly without
+ * boxing its arguments or casting its result.
+**/
+public class Reflect
+{
+
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+  /**
+   * Return the class of the specified name
+  **/
+  public static Class type(String className)
+  {
+    try
+    {
+      return Class.forName(className);
+    }
+    catch (ClassNotFoundException e)
+    {
+      throw new IllegalStateException(className + " is not on the class path (build with -Dann.jar=...)", e);
+    }
+  }
+
+  /**
+   * Return a handle on the method of the class, even private
+  **/
+  public static MethodHandle method(Class type, String name, Class[] parameters)
+  {
+    try
+    {
+      Method method = type.getDeclaredMethod(name, parameters);
+      method.setAccessible(true);
+      return lookup.unreflect(method);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Return a handle on the constructor of the class of the specified parameters, even private
+  **/
+  public static MethodHandle constructor(Class type, Class[] parameters)
+  {
+    try
+    {
+      Constructor constructor = type.getDeclaredConstructor(parameters);
+      constructor.setAccessible(true);
+      return lookup.unreflectConstructor(constructor);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Return the handle with every parameter and return type which is not a
+   * primitive replaced by Object
+  **/
+  public static MethodHandle erase(MethodHandle handle)
+  {
+    return handle.asType(handle.type().erase());
+  }
+
+  /**
+   * Return a new instance of the class built by the constructor of the specified parameters
+  **/
+  public static Object create(Class type, Class[] parameters, Object[] arguments)
+  {
+    try
+    {
+      Constructor constructor = type.getDeclaredConstructor(parameters);
+      constructor.setAccessible(true);
+      return constructor.newInstance(arguments);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw new IllegalStateException(e.getCause());
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Return the value of a field of the object, even private
+  **/
+  public static Object get(Object object, String name)
+  {
+    try
+    {
+      Field field = object.getClass().getDeclaredField(name);
+      field.setAccessible(true);
+      return field.get(object);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Set the value of a field of the object, even private
+  **/
+  public static void set(Object object, String name, Object value)
+  {
+    try
+    {
+      Field field = object.getClass().getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(object, value);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+}
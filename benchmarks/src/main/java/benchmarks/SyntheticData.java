@@ -0,0 +1,137 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package benchmarks;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generators of reproducible synthetic data sets of any size and dimension,
+ * written in the file formats read by the algorithms.
+**/
+public class SyntheticData
+{
+
+  /**
+   * Return n points of dimension d drawn around numClusters centers
+   * The centers are uniform in the unit cube and the points Gaussian around them.
+  **/
+  public static double[][] points(int n, int d, int numClusters, double spread, long seed)
+  {
+    Random random = new Random(seed);
+    double[][] centers = new double[numClusters][d];
+    for (int c=0; c < numClusters; c++)
+      for (int j=0; j < d; j++)
+        centers[c][j] = random.nextDouble();
+    double[][] points = new double[n][d];
+    int c;
+    for (int i=0; i < n; i++)
+    {
+      c = random.nextInt(numClusters);
+      for (int j=0; j < d; j++)
+        points[i][j] = centers[c][j] + spread * random.nextGaussian();
+    }
+    return points;
+  }
+
+  /**
+   * Return a 0 or 1 class label for each point: whether the sum of its
+   * coordinates is above that of the center of the unit cube
+  **/
+  public static int[] labels(double[][] points)
+  {
+    int[] labels = new int[points.length];
+    double sum;
+    for (int i=0; i < points.length; i++)
+    {
+      sum = 0;
+      for (int j=0; j < points[i].length; j++)
+        sum = sum + points[i][j];
+      labels[i] = (sum > points[i].length/2.0 ? 1 : 0);
+    }
+    return labels;
+  }
+
+  /**
+   * Write the points and their labels as a data set: a first line with the
+   * number of examples and of attributes, then one example per line with its
+   * attributes followed by its class label.
+  **/
+  public static File writeDataSet(double[][] points, int[] labels) throws IOException
+  {
+    File file = File.createTempFile("dataset", ".txt");
+    file.deleteOnExit();
+    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+    out.println(points.length + " " + points[0].length);
+    for (int i=0; i < points.length; i++)
+    {
+      for (int j=0; j < points[i].length; j++)
+        out.print(points[i][j] + " ");
+      out.println(labels[i]);
+    }
+    out.close();
+    return file;
+  }
+
+  /**
+   * Write the pairwise Euclidean distances of the points in the diagonal form
+   * read by Cluster.setDistances: the number of points, then for each point
+   * its index followed by its distance to each of the next points.
+  **/
+  public static File writeDistances(double[][] points) throws IOException
+  {
+    File file = File.createTempFile("distances", ".txt");
+    file.deleteOnExit();
+    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+    out.println(points.length);
+    double sum, diff;
+    for (int i=0; i < points.length; i++)
+    {
+      out.print(i);
+      for (int k=i+1; k < points.length; k++)
+      {
+        sum = 0;
+        for (int j=0; j < points[i].length; j++)
+        {
+          diff = points[i][j] - points[k][j];
+          sum = sum + diff * diff;
+        }
+        out.print(" " + Math.sqrt(sum));
+      }
+      out.println();
+    }
+    out.close();
+    return file;
+  }
+
+  /**
+   * Write numSequences random sequences of upper case letters of the specified
+   * length, one per line, each holding a copy of the same motif of length
+   * motifLength with one letter changed at random.
+  **/
+  public static File writeSequences(int numSequences, int length, int motifLength, long seed) throws IOException
+  {
+    Random random = new Random(seed);
+    char[] motif = new char[motifLength];
+    for (int i=0; i < motifLength; i++)
+      motif[i] = (char) ('A' + random.nextInt(26));
+    File file = File.createTempFile("sequences", ".txt");
+    file.deleteOnExit();
+    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+    char[] sequence = new char[length];
+    int start;
+    for (int k=0; k < numSequences; k++)
+    {
+      for (int i=0; i < length; i++)
+        sequence[i] = (char) ('A' + random.nextInt(26));
+      start = random.nextInt(length - motifLength + 1);
+      System.arraycopy(motif, 0, sequence, start, motifLength);
+      sequence[start + random.nextInt(motifLength)] = (char) ('A' + random.nextInt(26));
+      out.println(new String(sequence));
+    }
+    out.close();
+    return file;
+  }
+}
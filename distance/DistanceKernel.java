@@ -0,0 +1,76 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package distance;
+
+/**
+ * Squared Euclidean distance and dot product kernels shared by kNN and k-means.
+ * Points are read from flat arrays at a given offset so that rows of a
+ * matrix can be compared without being copied.
+ * The implementation is chosen once at startup: the SIMD kernel of
+ * VectorDistanceKernel when the jdk.incubator.vector module is present
+ * (run java with --add-modules jdk.incubator.vector), the scalar one otherwise.
+ * Setting the property distance.kernel to scalar forces the scalar kernel.
+**/
+public abstract class DistanceKernel
+{
+
+  public static final int BLOCK_SIZE = 16;   // number of features summed between two checks of a bound
+
+  private static final DistanceKernel instance = select();
+
+  /**
+   * Return the kernel chosen at startup
+  **/
+  public static DistanceKernel getInstance()
+  {
+    return instance;
+  }
+
+  /**
+   * Return sum_j weights[j] * (a[aOffset+j] - b[bOffset+j])^2 for j from 0 to length
+  **/
+  public abstract double weightedSquaredDist(double[] a, int aOffset, double[] b, int bOffset, double[] weights, int length);
+
+  /**
+   * Same as above but gives up as soon as the partial sum exceeds bound,
+   * checking it every BLOCK_SIZE features, and then returns the partial sum.
+   * Otherwise returns exactly what the method above returns.
+  **/
+  public abstract double weightedSquaredDist(double[] a, int aOffset, double[] b, int bOffset, double[] weights, int length, double bound);
+
+  /**
+   * Return sum_j (a[aOffset+j] - b[bOffset+j])^2 for j from 0 to length
+  **/
+  public abstract double squaredDist(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+  /**
+   * Return sum_j a[aOffset+j] * b[bOffset+j] for j from 0 to length
+  **/
+  public abstract double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+  /**
+   * Return the name of this kernel
+  **/
+  public abstract String getName();
+
+  /**
+   * Use the vector kernel if the incubator module can be loaded
+  **/
+  private static DistanceKernel select()
+  {
+    if ("scalar".equals(System.getProperty("distance.kernel")))
+      return new ScalarDistanceKernel();
+    try
+    {
+      Class.forName("jdk.incubator.vector.DoubleVector");
+      // only load the vector kernel once we know its module is present
+      return (DistanceKernel) Class.forName("distance.VectorDistanceKernel").getDeclaredConstructor().newInstance();
+    }
+    catch (Throwable e)
+    {
+      return new ScalarDistanceKernel();
+    }
+  }
+}
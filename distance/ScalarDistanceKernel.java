@@ -0,0 +1,69 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package distance;
+
+/**
+ * Plain loops, used when the vector API is not available.
+**/
+public class ScalarDistanceKernel extends DistanceKernel
+{
+
+  public double weightedSquaredDist(double[] a, int aOffset, double[] b, int bOffset, double[] weights, int length)
+  {
+    double sum = 0;
+    double diff;
+    for (int j=0; j < length; j++)
+    {
+      diff = a[aOffset + j] - b[bOffset + j];
+      sum = sum + weights[j] * (diff * diff);
+    }
+    return sum;
+  }
+
+  public double weightedSquaredDist(double[] a, int aOffset, double[] b, int bOffset, double[] weights, int length, double bound)
+  {
+    double sum = 0;
+    double diff;
+    int j = 0;
+    int blockEnd;
+    while (j < length)
+    {
+      blockEnd = Math.min(j + BLOCK_SIZE, length);
+      for (; j < blockEnd; j++)
+      {
+        diff = a[aOffset + j] - b[bOffset + j];
+        sum = sum + weights[j] * (diff * diff);
+      }
+      if (sum > bound)
+        return sum;
+    }
+    return sum;
+  }
+
+  public double squaredDist(double[] a, int aOffset, double[] b, int bOffset, int length)
+  {
+    double sum = 0;
+    double diff;
+    for (int j=0; j < length; j++)
+    {
+      diff = a[aOffset + j] - b[bOffset + j];
+      sum = sum + diff * diff;
+    }
+    return sum;
+  }
+
+  public double dot(double[] a, int aOffset, double[] b, int bOffset, int length)
+  {
+    double sum = 0;
+    for (int j=0; j < length; j++)
+      sum = sum + a[aOffset + j] * b[bOffset + j];
+    return sum;
+  }
+
+  public String getName()
+  {
+    return "scalar";
+  }
+}
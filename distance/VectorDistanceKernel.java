@@ -0,0 +1,126 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+package distance;
+
+import jdk.incubator.vector.*;
+
+/**
+ * SIMD loops over the widest vector species of the machine
+ * (4 doubles with AVX2, 8 with AVX-512).
+ * Lanes are summed at the end so results may differ from the scalar
+ * kernel in the last bits. Points shorter than one vector use the scalar loop.
+ * Only loaded by DistanceKernel once the incubator module is known to be present.
+**/
+public class VectorDistanceKernel extends DistanceKernel
+{
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  public double weightedSquaredDist(double[] a, int aOffset, double[] b, int bOffset, double[] weights, int length)
+  {
+    int j = 0;
+    double sum = 0;
+    if (length >= SPECIES.length())
+    {
+      DoubleVector sums = DoubleVector.zero(SPECIES);
+      DoubleVector diff;
+      int bound = SPECIES.loopBound(length);
+      for (; j < bound; j += SPECIES.length())
+      {
+        diff = DoubleVector.fromArray(SPECIES, a, aOffset + j).sub(DoubleVector.fromArray(SPECIES, b, bOffset + j));
+        sums = diff.mul(diff).fma(DoubleVector.fromArray(SPECIES, weights, j), sums);
+      }
+      sum = sums.reduceLanes(VectorOperators.ADD);
+    }
+    double diff;
+    for (; j < length; j++)
+    {
+      diff = a[aOffset + j] - b[bOffset + j];
+      sum = sum + weights[j] * (diff * diff);
+    }
+    return sum;
+  }
+
+  public double weightedSquaredDist(double[] a, int aOffset, double[] b, int bOffset, double[] weights, int length, double bound)
+  {
+    int j = 0;
+    double sum = 0;
+    if (length >= SPECIES.length())
+    {
+      // the lanes are only summed to check the bound so the result is the same as above
+      DoubleVector sums = DoubleVector.zero(SPECIES);
+      DoubleVector diff;
+      int loopBound = SPECIES.loopBound(length);
+      int block = Math.max(BLOCK_SIZE, SPECIES.length());
+      int blockEnd;
+      while (j < loopBound)
+      {
+        blockEnd = Math.min(j + block, loopBound);
+        for (; j < blockEnd; j += SPECIES.length())
+        {
+          diff = DoubleVector.fromArray(SPECIES, a, aOffset + j).sub(DoubleVector.fromArray(SPECIES, b, bOffset + j));
+          sums = diff.mul(diff).fma(DoubleVector.fromArray(SPECIES, weights, j), sums);
+        }
+        sum = sums.reduceLanes(VectorOperators.ADD);
+        if (sum > bound)
+          return sum;
+      }
+    }
+    double diff;
+    for (; j < length; j++)
+    {
+      diff = a[aOffset + j] - b[bOffset + j];
+      sum = sum + weights[j] * (diff * diff);
+    }
+    return sum;
+  }
+
+  public double squaredDist(double[] a, int aOffset, double[] b, int bOffset, int length)
+  {
+    int j = 0;
+    double sum = 0;
+    if (length >= SPECIES.length())
+    {
+      DoubleVector sums = DoubleVector.zero(SPECIES);
+      DoubleVector diff;
+      int bound = SPECIES.loopBound(length);
+      for (; j < bound; j += SPECIES.length())
+      {
+        diff = DoubleVector.fromArray(SPECIES, a, aOffset + j).sub(DoubleVector.fromArray(SPECIES, b, bOffset + j));
+        sums = diff.fma(diff, sums);
+      }
+      sum = sums.reduceLanes(VectorOperators.ADD);
+    }
+    double diff;
+    for (; j < length; j++)
+    {
+      diff = a[aOffset + j] - b[bOffset + j];
+      sum = sum + diff * diff;
+    }
+    return sum;
+  }
+
+  public double dot(double[] a, int aOffset, double[] b, int bOffset, int length)
+  {
+    int j = 0;
+    double sum = 0;
+    if (length >= SPECIES.length())
+    {
+      DoubleVector sums = DoubleVector.zero(SPECIES);
+      int bound = SPECIES.loopBound(length);
+      for (; j < bound; j += SPECIES.length())
+        sums = DoubleVector.fromArray(SPECIES, a, aOffset + j).fma(DoubleVector.fromArray(SPECIES, b, bOffset + j), sums);
+      sum = sums.reduceLanes(VectorOperators.ADD);
+    }
+    for (; j < length; j++)
+      sum = sum + a[aOffset + j] * b[bOffset + j];
+    return sum;
+  }
+
+  public String getName()
+  {
+    return "vector (" + SPECIES.length() + " doubles)";
+  }
+}
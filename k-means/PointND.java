@@ -3,12 +3,17 @@
  * This class describes a n dimensional point
   * Author: Alex Ksikes
 **/
+
+import distance.*;
+
 public class PointND
 {
 
   private int dimension;                // number of coordinates of a point
   private double[] coordinates;         // the coordinates of a point
 
+  private static final DistanceKernel kernel=DistanceKernel.getInstance();
+
   /**
    * Create a point centered at the origin of the specific dimension
   **/
@@ -87,12 +92,11 @@ public class PointND
 
   /**
    * Compute the euclidian distance of this point to point p2
+   * (no copy of this point is made)
   **/
   public double dist(PointND p2)
   {
-    PointND p1=new PointND(this);
-    (p1.subtract(p2));
-    return p1.norm();
+    return Math.sqrt(kernel.squaredDist(coordinates,0,p2.getCoordinates(),0,dimension));
   }
 
   /**
@@ -5,54 +5,436 @@
 **/
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import distance.*;
 
+/**
+ * The instances are held row after row in a single array, as are the means
+ * and the standard deviations of the clusters. Each iteration classifies the
+ * instances and sums them into the buffers of their class in place, so that
+ * no memory is allocated once a run is set up.
+ * The instances are split into chunks of CHUNK_SIZE which may be classified
+ * by several threads, each chunk summing its instances on its own. The sums
+ * of the chunks are then added up in order, so the model does not depend on
+ * the number of threads.
+**/
 public class kMeans
 {
 
   private int n;                          // number of instances to classify
   private int d;                          // number of coordinates of each point
   private int k;                          // number of clusters
-  private PointND[] mu;                   // coordinate of means mu[j] of each cluster j
-  private Vector[] w;                     // holds the points classified into each class w[j]
-  private PointND[] sigma;                // holds the standard deviation of each class i
+  private double[] x;                     // coordinate c of instance i at x[i*d+c]
+  private double[] mu;                    // coordinate c of the mean of cluster j at mu[j*d+c]
+  private double[] sigma;                 // holds the standard deviation of each cluster j (as mu)
   private double[] prior;                 // holds the prior of each class i
+  private int[] count;                    // number of instances classified into each class j
+  private int[] assignment;               // the class of each instance x[i]
+  private double[] sums;                  // sum of the instances classified into each class j (as mu)
+  private double[] oldMu;                 // the means of the last iteration (as mu)
   private double logLikelihood;           // holds the log likelihood of each of the k Gaussians
+  private double[] logNormalizer;         // log of the prior over the normalizing constant of each Gaussian j
+  private double[][] precision;           // the inverse of the variance of each coordinate of each Gaussian j
   private double MDL;                     // the minimum description length of the model
   private int numIterations;
+  private boolean accelerated;            // whether the distances which cannot change a class are skipped
+  private double[] upperBound;            // upper bound on the distance of x[i] to the mean of its class
+  private double[] lowerBound;            // lower bound on the distance of x[i] to the means of the other classes
+  private double[] drift;                 // distance each mean mu[j] moved at the last iteration
+  private double[] halfDist;              // half the distance of each mean to its nearest other mean
+  private boolean bounded;                // whether the bounds are used at this iteration
+  private int farthest;                   // the mean which moved the most at the last iteration
+  private double maxDrift;                // distance the mean farthest moved
+  private double secondDrift;             // largest distance any other mean moved
+  private int numThreads;                 // number of threads working on the chunks
+  private int numChunks;                  // number of chunks of instances
+  private double[][] chunkSums;           // sums over the instances of each chunk for each class (as mu)
+  private int[][] chunkCount;             // number of instances of each chunk classified into each class
+  private double[] chunkLikelihood;       // log likelihood of the instances of each chunk
+  private ForkJoinPool pool;              // the threads working on the chunks (null if serial)
+  private Random random;                  // draws the initial means and the batches of mini-batch k-means
+  private int seeding;                    // how the initial means are chosen (RANDOM, PLUS_PLUS or PARALLEL)
+  private double[] seeds;                 // the instances chosen while seeding (as mu)
+  private int numSeeds;                   // number of instances chosen while seeding
+  private int newSeeds;                   // first seed not yet compared to the instances
+  private double[] seedDist;              // squared distance of each instance x[i] to its nearest seed
+  private double[] chunkCost;             // sum of seedDist over the instances of each chunk
+  private int[][] chunkPicks;             // the instances of each chunk drawn at a round of k-means||
+  private int[] numPicks;                 // number of instances of each chunk drawn at a round of k-means||
+  private long roundSeed;                 // seeds the draws of the chunks at a round of k-means||
+  private double roundCost;               // sum of seedDist over all the instances at a round of k-means||
+
+  public static final int CHUNK_SIZE=16384; // number of instances of each chunk
+  public static final int SAMPLE_SIZE=65536;  // number of instances a mini-batch model is scored on
+
+  // the ways the initial means are chosen
+  public static final int RANDOM=0;         // distinct instances drawn at random
+  public static final int PLUS_PLUS=1;      // k-means++ (Arthur and Vassilvitskii, 2007)
+  public static final int PARALLEL=2;       // k-means|| (Bahmani et al., 2012)
+
+  public static final int ROUNDS=5;         // number of rounds of k-means||
+  public static final int OVERSAMPLING=2;   // instances drawn at each round of k-means|| per cluster
+
+  // the work done on each chunk
+  private static final int ASSIGN=0;
+  private static final int DEVIATION=1;
+  private static final int LIKELIHOOD=2;
+  private static final int SEED_DIST=3;
+  private static final int SEED_DRAW=4;
+
+  private static final double SLACK=1e-12;  // relative rounding error allowed in the bounds
+  private static final DistanceKernel kernel=DistanceKernel.getInstance();
 
   /**
    * Default constructor
   **/
   public kMeans()
   {
+    this.accelerated=true;
+    this.numThreads=1;
+    this.random=new Random();
+    this.seeding=PLUS_PLUS;
+  }
+
+  /**
+   * Seed the random draws of the initial means and of the mini-batches
+   * so that runs can be repeated (the results do not depend on the number
+   * of threads either)
+  **/
+  public void setSeed(long seed)
+  {
+    this.random=new Random(seed);
+  }
+
+  /**
+   * Set how the initial means are chosen: RANDOM, PLUS_PLUS (the default)
+   * or PARALLEL
+  **/
+  public void setSeeding(int seeding)
+  {
+    if (seeding != RANDOM && seeding != PLUS_PLUS && seeding != PARALLEL)
+      throw new IllegalArgumentException("Unknown seeding " + seeding);
+    this.seeding=seeding;
+  }
+
+  /**
+   * Set the number of threads classifying the instances and computing
+   * the quality of the model (1 by default)
+  **/
+  public void setNumThreads(int numThreads)
+  {
+    this.numThreads=Math.max(1,numThreads);
+  }
+
+  /**
+   * Set whether the assignment step skips the distances which cannot change
+   * the class of a point (the default) or computes them all
+  **/
+  public void setAccelerated(boolean accelerated)
+  {
+    this.accelerated=accelerated;
   }
 
   /**
    * Intialize the parameters of the k-means algorithm
-   * Randomly assign a point in x to each mean mu[j]
+   * The means are chosen by seed once the threads are ready
   **/
-  private void init(PointND[] x,int k)
+  private void init(double[] x,int d,int k)
   {
-    this.n=x.length;
-    this.d=x[0].getDimension();
+    this.n=x.length/d;
+    this.d=d;
     this.k=k;
-    this.mu=new PointND[k];
-    this.w=new Vector[k];
-    this.numIterations=0;
-    this.sigma=new PointND[k];
+    this.x=x;
+    this.mu=new double[k*d];
+    this.sigma=new double[k*d];
     this.prior=new double[k];
+    this.count=new int[k];
+    this.assignment=new int[n];
+    this.sums=new double[k*d];
+    this.oldMu=new double[k*d];
+    this.numIterations=0;
+    this.upperBound=new double[n];
+    this.lowerBound=new double[n];
+    this.drift=new double[k];
+    this.halfDist=new double[k];
+    this.numChunks=(n+CHUNK_SIZE-1)/CHUNK_SIZE;
+    this.chunkSums=new double[numChunks][k*d];
+    this.chunkCount=new int[numChunks][k];
+    this.chunkLikelihood=new double[numChunks];
+    this.logNormalizer=new double[k];
+    this.precision=new double[k][d];
+    this.chunkCost=new double[numChunks];
+    this.chunkPicks=new int[numChunks][16];
+    this.numPicks=new int[numChunks];
+  }
+
+  /**
+   * Assign an instance of x to each mean mu[j]
+   * each prior and standard deviation are left to zero
+  **/
+  private void seed()
+  {
+    if (seeding==RANDOM)
+      seedRandom();
+    else if (seeding==PLUS_PLUS)
+      seedPlusPlus();
+    else
+      seedParallel();
+    seeds=null;
+    seedDist=null;
+  }
 
-    // randomly assign a point in x to each mean mu[j]
-    PointND randomPoint;
+  /**
+   * Assign a distinct instance drawn at random to each mean mu[j]
+   * (instances are drawn again only if there are fewer than k)
+  **/
+  private void seedRandom()
+  {
+    int[] chosen=new int[k];
+    boolean taken;
     for (int j=0;j<k;j++)
     {
-      randomPoint=x[(int)(Math.random()*(n-1))];
-      mu[j]=new PointND(randomPoint);
-      // each prior and standard deviation are set to zero
-      sigma[j]=new PointND(d);
-      prior[j]=0;
+      do
+      {
+        chosen[j]=random.nextInt(n);
+        taken=false;
+        for (int l=0;l<j && j<n;l++)
+        {
+          if (chosen[l]==chosen[j])
+            taken=true;
+        }
+      }
+      while (taken);
+      System.arraycopy(x,chosen[j]*d,mu,j*d,d);
+    }
+  }
+
+  /**
+   * k-means++: the first mean is an instance drawn at random, and each next
+   * mean an instance drawn with probability proportional to its squared
+   * distance to the nearest mean chosen so far. The distances are updated
+   * chunk by chunk with each new mean.
+  **/
+  private void seedPlusPlus()
+  {
+    seeds=mu;
+    startSeeding();
+    addSeed(random.nextInt(n));
+    while (numSeeds<k)
+    {
+      updateSeedDist();
+      addSeed(drawInstance());
+    }
+  }
+
+  /**
+   * k-means||: starting from an instance drawn at random, each of ROUNDS
+   * rounds draws every instance independently with probability
+   * OVERSAMPLING*k times its squared distance to the nearest seed over the
+   * sum of these distances, so that about OVERSAMPLING*k seeds are added at
+   * once instead of one. Each seed is then weighed by the number of instances
+   * nearest to it and k means are chosen among the seeds by a weighted k-means++.
+   * The draws of a chunk only depend on the seed of the round and the chunk,
+   * so the means do not depend on the number of threads.
+  **/
+  private void seedParallel()
+  {
+    seeds=new double[(1+ROUNDS*OVERSAMPLING*k)*d];
+    startSeeding();
+    addSeed(random.nextInt(n));
+    updateSeedDist();
+    for (int round=0;round<ROUNDS;round++)
+    {
+      roundCost=totalCost();
+      if (roundCost==0)
+        break;
+      roundSeed=random.nextLong();
+      forEachChunk(SEED_DRAW);
+      for (int chunk=0;chunk<numChunks;chunk++)
+      {
+        for (int p=0;p<numPicks[chunk];p++)
+          addSeed(chunkPicks[chunk][p]);
+      }
+      updateSeedDist();
+    }
+    if (numSeeds<k)
+    {
+      // too few distinct instances to draw from
+      seedPlusPlus();
+      return;
+    }
+
+    // weigh each seed by the number of instances nearest to it
+    double[] weight=new double[numSeeds];
+    for (int i=0;i<n;i++)
+      weight[assignment[i]]++;
+
+    // weighted k-means++ over the seeds
+    double[] dist=new double[numSeeds];
+    Arrays.fill(dist,Double.POSITIVE_INFINITY);
+    double[] mass=new double[numSeeds];
+    int chosen=draw(weight);
+    for (int j=0;j<k;j++)
+    {
+      System.arraycopy(seeds,chosen*d,mu,j*d,d);
+      if (j==k-1)
+        break;
+      for (int s=0;s<numSeeds;s++)
+      {
+        dist[s]=Math.min(dist[s],kernel.squaredDist(seeds,s*d,mu,j*d,d));
+        mass[s]=weight[s]*dist[s];
+      }
+      chosen=draw(mass);
+      if (chosen<0)
+        chosen=draw(weight);
+    }
+  }
+
+  /**
+   * No seed is chosen yet, every instance is infinitely far from the seeds
+  **/
+  private void startSeeding()
+  {
+    numSeeds=0;
+    newSeeds=0;
+    seedDist=new double[n];
+    Arrays.fill(seedDist,Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Add the instance x[i] to the seeds
+  **/
+  private void addSeed(int i)
+  {
+    if ((numSeeds+1)*d > seeds.length)
+      seeds=Arrays.copyOf(seeds,2*seeds.length);
+    System.arraycopy(x,i*d,seeds,numSeeds*d,d);
+    numSeeds++;
+  }
+
+  /**
+   * Compare the instances to the seeds added since the last update
+  **/
+  private void updateSeedDist()
+  {
+    forEachChunk(SEED_DIST);
+    newSeeds=numSeeds;
+  }
+
+  /**
+   * Lower the squared distance of the instances from to to (excluded) of a chunk
+   * to their nearest seed with the new seeds, keep the nearest seed of each
+   * instance in assignment and sum the distances of the chunk
+  **/
+  private void updateSeedDist(int chunk,int from,int to)
+  {
+    double dist;
+    double cost=0;
+    for (int i=from;i<to;i++)
+    {
+      for (int s=newSeeds;s<numSeeds;s++)
+      {
+        dist=kernel.squaredDist(x,i*d,seeds,s*d,d);
+        if (dist<seedDist[i])
+        {
+          seedDist[i]=dist;
+          assignment[i]=s;
+        }
+      }
+      cost=cost + seedDist[i];
+    }
+    chunkCost[chunk]=cost;
+  }
+
+  /**
+   * Draw the instances from to to (excluded) of a chunk for a round of k-means||
+  **/
+  private void drawSeeds(int chunk,int from,int to)
+  {
+    Random draws=new Random(roundSeed + chunk);
+    double rate=OVERSAMPLING*k/roundCost;
+    int count=0;
+    for (int i=from;i<to;i++)
+    {
+      if (draws.nextDouble() < rate*seedDist[i])
+      {
+        if (count==chunkPicks[chunk].length)
+          chunkPicks[chunk]=Arrays.copyOf(chunkPicks[chunk],2*count);
+        chunkPicks[chunk][count]=i;
+        count++;
+      }
     }
+    numPicks[chunk]=count;
+  }
+
+  /**
+   * Return the sum of the squared distances of the instances to their nearest seed
+  **/
+  private double totalCost()
+  {
+    double cost=0;
+    for (int chunk=0;chunk<numChunks;chunk++)
+      cost=cost + chunkCost[chunk];
+    return cost;
+  }
+
+  /**
+   * Return an instance drawn with probability proportional to its squared
+   * distance to the nearest seed (at random if they are all seeds)
+   * The chunk of the instance is found first from the sums of the chunks.
+  **/
+  private int drawInstance()
+  {
+    double cost=totalCost();
+    if (!(cost > 0) || Double.isInfinite(cost))
+      return random.nextInt(n);
+    double r=random.nextDouble()*cost;
+    int chunk=0;
+    while (chunk<numChunks-1 && r >= chunkCost[chunk])
+    {
+      r=r - chunkCost[chunk];
+      chunk++;
+    }
+    int last=-1;
+    for (int i=chunk*CHUNK_SIZE;i<Math.min((chunk+1)*CHUNK_SIZE,n);i++)
+    {
+      if (seedDist[i] > 0)
+      {
+        last=i;
+        r=r - seedDist[i];
+        if (r<0)
+          return i;
+      }
+    }
+    // rounding left r just above the sum of the chunk
+    return (last<0 ? random.nextInt(n) : last);
+  }
+
+  /**
+   * Return an index drawn with probability proportional to its mass
+   * (-1 if the masses are all zero)
+  **/
+  private int draw(double[] mass)
+  {
+    double total=0;
+    int last=-1;
+    for (int s=0;s<mass.length;s++)
+    {
+      total=total + mass[s];
+      if (mass[s] > 0)
+        last=s;
+    }
+    if (last<0 || Double.isInfinite(total))
+      return last;
+    double r=random.nextDouble()*total;
+    for (int s=0;s<mass.length;s++)
+    {
+      r=r - mass[s];
+      if (r<0 && mass[s] > 0)
+        return s;
+    }
+    return last;
   }
 
   /**
@@ -60,121 +442,510 @@ public class kMeans
    * Then find the quality of the model
   **/
   public void run(PointND[] x,int k,double epsilon)
+  {
+    int d=x[0].getDimension();
+    double[] points=new double[x.length*d];
+    for (int i=0;i<x.length;i++)
+      System.arraycopy(x[i].getCoordinates(),0,points,i*d,d);
+    run(points,d,k,epsilon);
+  }
+
+  /**
+   * Same as above on the instances held row after row in x with d coordinates each
+  **/
+  public void run(double[] x,int d,int k,double epsilon)
+  {
+    run(x,d,k,null,epsilon);
+  }
+
+  /**
+   * Same as above starting from the k means held row after row in means
+   * instead of seeding them (see splitWorstCluster)
+  **/
+  public void run(double[] x,int d,double[] means,double epsilon)
+  {
+    run(x,d,means.length/d,means,epsilon);
+  }
+
+  private void run(double[] x,int d,int k,double[] means,double epsilon)
   {
     double maxDeltaMeans=epsilon+1;
-    PointND[] oldMeans=new PointND[k];
     // initialize n,k,mu[j]
-    init(x,k);
-    // iterate until there is no change in mu[j]
-    while (maxDeltaMeans > epsilon)
+    init(x,d,k);
+    if (numThreads > 1 && numChunks > 1)
+      pool=new ForkJoinPool(numThreads);
+    try
     {
-      // remember old values of the each mean
-      for (int j=0;j<k;j++)
+      if (means==null)
+        seed();
+      else
+        System.arraycopy(means,0,mu,0,k*d);
+      // iterate until there is no change in mu[j]
+      while (maxDeltaMeans > epsilon)
       {
-        oldMeans[j]=new PointND(mu[j]);
+        // remember old values of the each mean
+        System.arraycopy(mu,0,oldMu,0,k*d);
+        // classify each instance x[i] to its nearest class
+        // and sum the instances of each class
+        assign();
+        // recompute each mean
+        computeMeans();
+        // compute the largest change in mu[j] and how far each mean moved
+        maxDeltaMeans=maxDeltaMeans();
+        numIterations++;
       }
-      // classify each instance x[i] to its nearest class
-      // first we need to clear the class array since we are reclassifying
-      for (int j=0;j<k;j++)
+      // now we find the quality of the model
+      modelQuality();
+    }
+    finally
+    {
+      if (pool != null)
+        pool.shutdown();
+      pool=null;
+    }
+  }
+
+  /**
+   * Runs mini-batch k-means (Sculley, 2010) with k clusters on the instances
+   * of the source, which need not fit in memory.
+   * The means are seeded from a first random sample. Each iteration then
+   * draws batchSize instances at random, classifies them to the nearest mean
+   * and moves each mean towards each of its instances in turn by the inverse
+   * of the number of instances the mean was given so far.
+   * Stops after maxBatches batches or once no mean moved by more than epsilon
+   * over a batch. The standard deviations, priors and MDL are then computed
+   * over all the instances if fullPass is true (three more passes over the
+   * source, a block at a time) and over a random sample of SAMPLE_SIZE
+   * instances otherwise.
+   * writeFile cannot be used after such a run.
+  **/
+  public void run(kMeansSource source,int k,int batchSize,int maxBatches,double epsilon,boolean fullPass) throws IOException
+  {
+    int size=source.size();
+    int d=source.getDimension();
+    // a block holds a batch or the instances classified at once
+    int blockSize=Math.min(size,Math.max(batchSize,Math.max(SAMPLE_SIZE,numThreads*CHUNK_SIZE)));
+    double[] block=new double[blockSize*d];
+    source.sample(random,blockSize,block);
+    init(block,d,k);
+    batchSize=Math.min(batchSize,blockSize);
+    if (numThreads > 1)
+      pool=new ForkJoinPool(numThreads);
+    try
+    {
+      seed();
+      long[] given=new long[k];           // number of instances given to each mean so far
+      double largestMove=epsilon+1;
+      double rate;
+      int a;
+      while (numIterations < maxBatches && largestMove > epsilon)
+      {
+        System.arraycopy(mu,0,oldMu,0,k*d);
+        // classify a random batch to the means as they stand
+        source.sample(random,batchSize,block);
+        setRows(batchSize);
+        bounded=false;
+        forEachChunk(ASSIGN);
+        // move each mean towards its instances
+        for (int i=0;i<n;i++)
+        {
+          a=assignment[i];
+          given[a]++;
+          rate=1.0/given[a];
+          for (int c=0;c<d;c++)
+            mu[a*d+c]=(1-rate)*mu[a*d+c] + rate*x[i*d+c];
+        }
+        maxDeltaMeans();
+        largestMove=0;
+        for (int j=0;j<k;j++)
+          largestMove=Math.max(largestMove,drift[j]);
+        numIterations++;
+      }
+
+      // now we find the quality of the model
+      if (fullPass)
       {
-        w[j]=new Vector();        // could use clear but then have to init...
+        modelQuality(source);
       }
+      else
+      {
+        source.sample(random,Math.min(size,SAMPLE_SIZE),block);
+        setRows(Math.min(size,SAMPLE_SIZE));
+        forEachChunk(ASSIGN);
+        addUpChunks();
+        modelQuality();
+      }
+    }
+    finally
+    {
+      if (pool != null)
+        pool.shutdown();
+      pool=null;
+    }
+  }
+
+  /**
+   * Find the quality of the model over all the instances of the source, read
+   * a block at a time: the instances of each class are counted first, then
+   * their deviations from the mean of their class are summed, and last
+   * their likelihood.
+  **/
+  private void modelQuality(kMeansSource source) throws IOException
+  {
+    int size=source.size();
+    int blockSize=x.length/d;
+    bounded=false;
+
+    // count the instances of each class
+    int[] total=new int[k];
+    for (int from=0;from<size;from=from+blockSize)
+    {
+      source.read(from,Math.min(from+blockSize,size),x);
+      setRows(Math.min(from+blockSize,size)-from);
+      forEachChunk(ASSIGN);
+      addUpChunks();
+      for (int j=0;j<k;j++)
+        total[j]=total[j] + count[j];
+    }
+    System.arraycopy(total,0,count,0,k);
 
-      for (int i=0;i<n;i++)
+    // compute the standard deviation and the prior of each cluster
+    Arrays.fill(sigma,0);
+    for (int from=0;from<size;from=from+blockSize)
+    {
+      source.read(from,Math.min(from+blockSize,size),x);
+      setRows(Math.min(from+blockSize,size)-from);
+      forEachChunk(ASSIGN);
+      forEachChunk(DEVIATION);
+      for (int chunk=0;chunk<numChunks;chunk++)
       {
-        classify(x[i]);
+        for (int c=0;c<k*d;c++)
+          sigma[c]=sigma[c] + chunkSums[chunk][c];
       }
-      // recompute each mean
-      computeMeans();
-      // compute the largest change in mu[j]
-      maxDeltaMeans=maxDeltaMeans(oldMeans);
-      numIterations++;
     }
-    // now we find the quality of the model
-    modelQuality(x);
+    for (int c=0;c<k*d;c++)
+      sigma[c]=Math.pow(sigma[c],1.0/2);
+    for (int j=0;j<k;j++)
+      prior[j]=count[j]*(1.0)/size;
+
+    // compute the log likelihood of the instances
+    computeNormalizers();
+    logLikelihood=0;
+    for (int from=0;from<size;from=from+blockSize)
+    {
+      source.read(from,Math.min(from+blockSize,size),x);
+      setRows(Math.min(from+blockSize,size)-from);
+      forEachChunk(LIKELIHOOD);
+      for (int chunk=0;chunk<numChunks;chunk++)
+        logLikelihood=logLikelihood + chunkLikelihood[chunk];
+    }
+
+    // find the minimum description length of the model
+    computeMDL();
+  }
+
+  /**
+   * Use the first rows instances of x (the instances of a block)
+  **/
+  private void setRows(int rows)
+  {
+    this.n=rows;
+    this.numChunks=(rows+CHUNK_SIZE-1)/CHUNK_SIZE;
+  }
+
+  /**
+   * Do the specified work on every chunk, with the pool if there is one
+  **/
+  private void forEachChunk(final int work)
+  {
+    if (pool == null)
+    {
+      for (int chunk=0;chunk<numChunks;chunk++)
+        doChunk(work,chunk);
+      return;
+    }
+    List tasks=new ArrayList();
+    for (int chunk=0;chunk<numChunks;chunk++)
+    {
+      final int index=chunk;
+      tasks.add(new Callable()
+      {
+        public Object call()
+        {
+          doChunk(work,index);
+          return null;
+        }
+      });
+    }
+    try
+    {
+      List results=pool.invokeAll(tasks);
+      for (int chunk=0;chunk<numChunks;chunk++)
+        ((Future) results.get(chunk)).get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Do the specified work on the instances of a chunk
+  **/
+  private void doChunk(int work,int chunk)
+  {
+    int from=chunk*CHUNK_SIZE;
+    int to=Math.min(from+CHUNK_SIZE,n);
+    switch (work)
+    {
+      case ASSIGN:
+        assign(chunk,from,to);
+        break;
+      case DEVIATION:
+        computeDeviation(chunk,from,to);
+        break;
+      case LIKELIHOOD:
+        computeLogLikelihood(chunk,from,to);
+        break;
+      case SEED_DIST:
+        updateSeedDist(chunk,from,to);
+        break;
+      case SEED_DRAW:
+        drawSeeds(chunk,from,to);
+        break;
+    }
   }
 
   /**
    * Find the quality of the model
   **/
-  private void modelQuality(PointND[] x)
+  private void modelQuality()
   {
     // compute the standard deviation of each cluster
     computeDeviation();
     // compute the prior of each cluster
     computePriors();
     // compute the log likelihood of each cluster
-    computeLogLikelihood(x);
+    computeLogLikelihood();
     // find the minimum description length of the model
     computeMDL();
   }
 
+  /**
+   * Classifies each instance x[i] to its nearest class and adds it to the sum
+   * of its class. Distances which cannot change the class of x[i] are skipped
+   * (Hamerly's bounds): x[i] stays in its class a without computing any distance
+   * when an upper bound on its distance to mu[a] is below both a lower bound on
+   * its distance to the other means and half the distance of mu[a] to the
+   * nearest other mean. The bounds are moved by how much the means moved at
+   * the last iteration.
+   * The classes are the same as when all the distances are computed: the bounds
+   * are only trusted by a margin of SLACK and all the distances are computed
+   * as in classify. Every distance is computed at the first iteration and when
+   * a mean is undefined (a class left empty).
+  **/
+  private void assign()
+  {
+    bounded=(accelerated && numIterations > 0);
+    for (int j=0;j<k;j++)
+    {
+      if (Double.isNaN(drift[j]) || Double.isInfinite(drift[j]))
+        bounded=false;
+    }
+
+    // the largest move of the means and the largest move of the others
+    farthest=0;
+    maxDrift=0;
+    secondDrift=0;
+    if (bounded)
+    {
+      computeHalfDist();
+      for (int j=0;j<k;j++)
+      {
+        if (drift[j] > maxDrift)
+        {
+          secondDrift=maxDrift;
+          maxDrift=drift[j];
+          farthest=j;
+        }
+        else if (drift[j] > secondDrift)
+        {
+          secondDrift=drift[j];
+        }
+      }
+    }
+
+    forEachChunk(ASSIGN);
+    addUpChunks();
+  }
+
+  /**
+   * Add up the sums and the counts of the classes over the chunks in order
+  **/
+  private void addUpChunks()
+  {
+    Arrays.fill(sums,0);
+    Arrays.fill(count,0);
+    for (int chunk=0;chunk<numChunks;chunk++)
+    {
+      for (int j=0;j<k;j++)
+        count[j]=count[j] + chunkCount[chunk][j];
+      for (int c=0;c<k*d;c++)
+        sums[c]=sums[c] + chunkSums[chunk][c];
+    }
+  }
 
   /**
-   * Classifies the point x to the nearest class
+   * Classify the instances from to to (excluded) of a chunk and sum them for each class
   **/
-  private void classify(PointND x)
+  private void assign(int chunk,int from,int to)
   {
-    double dist=0;
+    double[] sums=chunkSums[chunk];
+    int[] count=chunkCount[chunk];
+    Arrays.fill(sums,0);
+    Arrays.fill(count,0);
+    int a;
+    double bound;
+    for (int i=from;i<to;i++)
+    {
+      if (bounded)
+      {
+        a=assignment[i];
+        upperBound[i]=upperBound[i] + drift[a];
+        lowerBound[i]=lowerBound[i] - (a==farthest ? secondDrift : maxDrift);
+        bound=Math.max(halfDist[a],lowerBound[i]);
+        if (!isBelow(upperBound[i],bound))
+        {
+          // tighten the upper bound then compute all the distances if still needed
+          upperBound[i]=dist(i,a);
+          if (!isBelow(upperBound[i],bound))
+            classify(i);
+        }
+      }
+      else
+      {
+        classify(i);
+      }
+      // add x[i] to the sum of its class
+      a=assignment[i];
+      count[a]++;
+      for (int c=0;c<d;c++)
+        sums[a*d+c]=sums[a*d+c] + x[i*d+c];
+    }
+  }
+
+  /**
+   * Classifies the instance x[i] to the nearest class (the first one in case of ties)
+   * and sets its bounds to the distance of its nearest and second nearest means
+  **/
+  private void classify(int i)
+  {
+    double dist;
     double smallestDist;
+    double secondDist=Double.POSITIVE_INFINITY;
     int nearestClass;
 
-    // compute the distance x is from mean mu[0]
-    smallestDist=x.dist(mu[0]);
+    // compute the distance x[i] is from mean mu[0]
+    smallestDist=dist(i,0);
     nearestClass=0;
 
-    // compute the distance x is from the other classes
-    for(int j=1;j<k;j++)
+    // compute the distance x[i] is from the other classes
+    for (int j=1;j<k;j++)
     {
-      dist=x.dist(mu[j]);
+      dist=dist(i,j);
       if (dist<smallestDist)
       {
+        secondDist=smallestDist;
         smallestDist=dist;
         nearestClass=j;
       }
+      else if (dist<secondDist)
+      {
+        secondDist=dist;
+      }
     }
-    // classify x into class its nearest class
-    w[nearestClass].add(x);
+    assignment[i]=nearestClass;
+    upperBound[i]=smallestDist;
+    lowerBound[i]=secondDist;
   }
 
   /**
-   * Recompute mu[j] as the average of all points classified to the class w[j]
+   * Return the euclidian distance of the instance x[i] to the mean mu[j]
   **/
-  private void computeMeans()
+  private double dist(int i,int j)
   {
-    int numInstances;               // number of instances in each class w[j]
-    PointND instance;
-
-    // init the means to zero
-    for (int j=0;j<k;j++)
-      mu[j].setToOrigin();
+    return Math.sqrt(kernel.squaredDist(x,i*d,mu,j*d,d));
+  }
 
-    // recompute the means of each cluster
+  /**
+   * Compute half the distance of each mean to its nearest other mean
+  **/
+  private void computeHalfDist()
+  {
+    double dist;
+    Arrays.fill(halfDist,Double.POSITIVE_INFINITY);
     for (int j=0;j<k;j++)
     {
-      numInstances=w[j].size();
-      for (int i=0;i<numInstances;i++)
+      for (int l=j+1;l<k;l++)
       {
-        instance=(PointND) (w[j].get(i));
-        mu[j].add(instance);
+        dist=Math.sqrt(kernel.squaredDist(mu,j*d,mu,l*d,d))/2;
+        halfDist[j]=Math.min(halfDist[j],dist);
+        halfDist[l]=Math.min(halfDist[l],dist);
       }
-      mu[j].multiply(1.0/numInstances);
+    }
+  }
+
+  /**
+   * Return true if a distance of at most upper is surely below any distance
+   * of at least bound despite rounding (false if either is not a number)
+  **/
+  private static boolean isBelow(double upper,double bound)
+  {
+    return upper*(1+SLACK) < bound*(1-SLACK);
+  }
+
+  /**
+   * Recompute mu[j] as the average of all points classified to the class j
+  **/
+  private void computeMeans()
+  {
+    double scale;
+    for (int j=0;j<k;j++)
+    {
+      scale=1.0/count[j];
+      for (int c=0;c<d;c++)
+        mu[j*d+c]=scale * sums[j*d+c];
     }
   }
 
   /**
    * Compute the maximum change over each mean mu[j]
+   * and the distance drift[j] each mean moved
   **/
-  private double maxDeltaMeans(PointND[] oldMeans)
+  private double maxDeltaMeans()
   {
     double delta;
-    oldMeans[0].subtract(mu[0]);
-    double maxDelta=oldMeans[0].max();
-    for (int j=1;j<k;j++)
+    double diff;
+    double move;
+    double maxDelta=0;
+    for (int j=0;j<k;j++)
     {
-      oldMeans[j].subtract(mu[j]);
-      delta=oldMeans[j].max();
-      if (delta > maxDelta)
+      delta=oldMu[j*d]-mu[j*d];
+      move=0;
+      for (int c=0;c<d;c++)
+      {
+        diff=oldMu[j*d+c]-mu[j*d+c];
+        if (diff > delta)
+          delta=diff;
+        move=move + Math.pow(diff,2);
+      }
+      drift[j]=Math.sqrt(move);
+      if (j==0 || delta > maxDelta)
         maxDelta=delta;
     }
     return maxDelta;
@@ -194,8 +965,8 @@ public class kMeans
       System.out.println();
       System.out.println("Gaussian no. " + (j+1));
       System.out.println("---------------");
-      System.out.println("mean " + mu[j]);
-      System.out.println("sigma " + sigma[j]);
+      System.out.println("mean " + toString(mu,j*d));
+      System.out.println("sigma " + toString(sigma,j*d));
       System.out.println("prior " + prior[j]);
     }
     System.out.println();
@@ -220,18 +991,27 @@ public class kMeans
     // save the means of each Gaussian
     for (int j=0;j<k;j++)
     {
-      out.write(mu[j] + " ");
+      out.write(toString(mu,j*d) + " ");
     }
     out.write("\r");
+    // list the points of each Gaussian in order
+    int[] start=new int[k+1];
+    for (int j=0;j<k;j++)
+      start[j+1]=start[j] + count[j];
+    int[] members=new int[n];
+    int[] next=new int[k];
+    for (int i=0;i<n;i++)
+    {
+      members[start[assignment[i]] + next[assignment[i]]]=i;
+      next[assignment[i]]++;
+    }
     // save the points in each Gaussian for each column
-    int numInstances=0;
     for (int i=0;i<n;i++)
     {
       for (int j=0;j<k;j++)
       {
-        numInstances=w[j].size();
-        if (i<numInstances)
-          out.write(w[j].get(i) + " ");
+        if (i<count[j])
+          out.write(toString(x,members[start[j]+i]*d) + " ");
         else
           out.write("" + " " + "" + " ");
       }
@@ -244,28 +1024,37 @@ public class kMeans
   **/
   private void computeDeviation()
   {
-    int numInstances;               // number of instances in each class w[j]
-    PointND instance;
-    PointND temp;
-
-    // set the standard deviation to zero
-    for (int j=0;j<k;j++)
-      sigma[j].setToOrigin();
+    // sum i (x[i]-mu[j])^2 * p(x[i]) over the instances of each cluster j
+    forEachChunk(DEVIATION);
+    Arrays.fill(sigma,0);
+    for (int chunk=0;chunk<numChunks;chunk++)
+    {
+      for (int c=0;c<k*d;c++)
+        sigma[c]=sigma[c] + chunkSums[chunk][c];
+    }
+    // because we want the standard deviation
+    for (int c=0;c<k*d;c++)
+      sigma[c]=Math.pow(sigma[c],1.0/2);
+  }
 
-    // for each cluster j...
-    for (int j=0;j<k;j++)
+  /**
+   * Sum the squared deviations of the instances from to to (excluded) of a chunk
+   * into the sums of the chunk
+  **/
+  private void computeDeviation(int chunk,int from,int to)
+  {
+    double[] sums=chunkSums[chunk];
+    int j;
+    double diff;
+    Arrays.fill(sums,0);
+    for (int i=from;i<to;i++)
     {
-      numInstances=w[j].size();
-      for (int i=0;i<numInstances;i++)
+      j=assignment[i];
+      for (int c=0;c<d;c++)
       {
-        instance=(PointND) (w[j].get(i));
-        temp=new PointND(instance);
-        temp.subtract(mu[j]);
-        temp.pow(2.0);                        // (x[i]-mu[j])^2
-        temp.multiply(1.0/numInstances);      // multiply by proba of having x[i] in cluster j
-        sigma[j].add(temp);                   // sum i (x[i]-mu[j])^2 * p(x[i])
+        diff=x[i*d+c]-mu[j*d+c];
+        sums[j*d+c]=sums[j*d+c] + (1.0/count[j]) * Math.pow(diff,2.0);
       }
-      sigma[j].pow(1.0/2);                    // because we want the standard deviation
     }
   }
 
@@ -274,10 +1063,10 @@ public class kMeans
   **/
   private void computePriors()
   {
-    double numInstances;               // number of instances in each class w[j]
+    double numInstances;               // number of instances in each class j
     for (int j=0;j<k;j++)
     {
-      numInstances=w[j].size()*(1.0);
+      numInstances=count[j]*(1.0);
       prior[j]=numInstances/n;
     }
   }
@@ -285,24 +1074,70 @@ public class kMeans
   /**
    * Assume the standard deviations and priors of each cluster have been computed
   **/
-  private void computeLogLikelihood(PointND[] x)
+  private void computeLogLikelihood()
   {
-    double temp1=0;
+    computeNormalizers();
+    forEachChunk(LIKELIHOOD);
+    double temp2=0;
+    for (int chunk=0;chunk<numChunks;chunk++)
+      temp2=temp2 + chunkLikelihood[chunk];
+    logLikelihood=temp2;
+  }
+
+  /**
+   * Compute the log of the prior over the normalizing constant of each Gaussian
+   * and the inverse of its variances, once for all the instances
+  **/
+  private void computeNormalizers()
+  {
+    double logSigma;
+    for (int j=0;j<k;j++)
+    {
+      logSigma=0;
+      for (int c=0;c<d;c++)
+      {
+        logSigma=logSigma + Math.log(sigma[j*d+c]);
+        precision[j][c]=1.0/(sigma[j*d+c]*sigma[j*d+c]);
+      }
+      logNormalizer[j]=Math.log(prior[j]) - d/2.0*Math.log(2*Math.PI) - logSigma;
+    }
+  }
+
+  /**
+   * Compute the log likelihood (in bits) of the instances from to to (excluded) of a chunk
+   * The mixture is summed in log space (log-sum-exp), so that the density of
+   * an instance does not underflow to zero when there are many coordinates.
+  **/
+  private void computeLogLikelihood(int chunk,int from,int to)
+  {
+    double[] logTerm=new double[k];     // log of the prior times the density of each Gaussian j
+    double largest;
+    double sum;
     double temp2=0;
-    PointND variance;
     double ln2=Math.log(2);
     // for each instance x
-    for (int i=0;i<n;i++)
+    for (int i=from;i<to;i++)
     {
       // for each cluster j
-      temp1=0;
+      largest=Double.NEGATIVE_INFINITY;
       for (int j=0;j<k;j++)
       {
-        temp1=temp1 + ( x[i].normal(mu[j],sigma[j]) *  prior[j] );
+        logTerm[j]=logNormalizer[j] - 1.0/2*kernel.weightedSquaredDist(x,i*d,mu,j*d,precision[j],d);
+        if (logTerm[j] > largest || Double.isNaN(logTerm[j]))
+          largest=logTerm[j];
       }
-      temp2=temp2 + Math.log(temp1)/ln2;
+      if (Double.isInfinite(largest))
+      {
+        // every density is zero or one is infinite
+        temp2=temp2 + largest;
+        continue;
+      }
+      sum=0;
+      for (int j=0;j<k;j++)
+        sum=sum + Math.exp(logTerm[j]-largest);
+      temp2=temp2 + (largest + Math.log(sum))/ln2;
     }
-    logLikelihood=temp2;
+    chunkLikelihood[chunk]=temp2;
   }
 
   /**
@@ -315,10 +1150,10 @@ public class kMeans
     double ln2=Math.log(2);
     for (int j=0;j<k;j++)
     {
-      numInstances=w[j].size();
+      numInstances=count[j];
       for (int i=0;i<d;i++)
       {
-        temp=temp - Math.log( sigma[j].getCoordinate(i)/Math.sqrt(numInstances) )/ln2;
+        temp=temp - Math.log( sigma[j*d+i]/Math.sqrt(numInstances) )/ln2;
       }
     }
     MDL=temp - logLikelihood;
@@ -329,15 +1164,137 @@ public class kMeans
     return MDL;
   }
 
+  public int getNumClusters()
+  {
+    return k;
+  }
+
+  /**
+   * Return the means of the clusters, row after row
+  **/
+  public double[] getMeans()
+  {
+    return mu;
+  }
+
+  /**
+   * Return the standard deviations of the clusters (as the means)
+  **/
+  public double[] getDeviations()
+  {
+    return sigma;
+  }
+
+  public double[] getPriors()
+  {
+    return prior;
+  }
+
+  /**
+   * Return k+1 means to start a run from: the means of this model where the
+   * cluster with the largest sum of squared deviations is replaced by two
+   * means one standard deviation away on either side of its mean.
+   * Returns null if a cluster of this model is empty (its mean is undefined).
+   * Assumes the algorithm was run.
+  **/
+  public double[] splitWorstCluster()
+  {
+    int worst=0;
+    double largest=-1;
+    double error;
+    for (int j=0;j<k;j++)
+    {
+      if (count[j]==0)
+        return null;
+      error=0;
+      for (int c=0;c<d;c++)
+        error=error + count[j]*Math.pow(sigma[j*d+c],2);
+      if (error > largest)
+      {
+        largest=error;
+        worst=j;
+      }
+    }
+    double[] means=new double[(k+1)*d];
+    System.arraycopy(mu,0,means,0,k*d);
+    for (int c=0;c<d;c++)
+    {
+      means[worst*d+c]=mu[worst*d+c] - sigma[worst*d+c];
+      means[k*d+c]=mu[worst*d+c] + sigma[worst*d+c];
+    }
+    return means;
+  }
+
+  /**
+   * Return the d coordinates of a starting at offset as PointND prints them
+  **/
+  private String toString(double[] a,int offset)
+  {
+    String s="" + a[offset];
+    for (int c=1;c<d;c++)
+      s=s + " " + a[offset+c];
+    return s;
+  }
+
+  /**
+   * Return true if the arguments from first on are distinct options among options
+  **/
+  private static boolean hasOptions(String[] args,int first,String[] options)
+  {
+    for (int a=first;a<args.length;a++)
+    {
+      if (!Arrays.asList(options).contains(args[a]) || Arrays.asList(args).indexOf(args[a]) < a)
+        return false;
+    }
+    return true;
+  }
+
   /**
    * Takes the data filename of instances to classify into a number of cluster k
-   * Runs the k-means algorithm with 1 to maxk clusters
+   * Runs the k-means algorithm with 1 to maxk clusters (see kMeansSelection),
+   * each from the previous one with -warm
+   * With -em the most likely model is then refined by EM (see kMeansEM).
+   * With -minibatch the instances are read from a binary file made by -convert
+   * and mini-batch k-means is run on them.
   **/
   public static void main(String[] args) throws IOException
   {
-    if (args.length!=2)
+    if (args.length==3 && args[0].equals("-convert"))
+    {
+      kMeansSource.write(args[1],args[2]);
+    }
+    else if (args.length==4 && args[0].equals("-minibatch"))
+    {
+      kMeansSource source=kMeansSource.open(args[1]);
+      int maxk=Integer.parseInt(args[2]);
+      int batchSize=Integer.parseInt(args[3]);
+      int maxBatches=1000;
+      double epsilon=0.01;
+
+      // Try with k clusters....till maxk clusters
+      kMeans algorithm=new kMeans();
+      algorithm.setNumThreads(Runtime.getRuntime().availableProcessors());
+      int bestModel=1;
+      double bestMDL=Double.POSITIVE_INFINITY;
+      for (int k=1;k<=maxk;k++)
+      {
+        algorithm.run(source,k,batchSize,maxBatches,epsilon,true);
+        algorithm.printResults();
+        if (algorithm.getMDL() < bestMDL)
+        {
+          bestModel=k;
+          bestMDL=algorithm.getMDL();
+        }
+      }
+      source.close();
+      System.out.println("********************************************");
+      System.out.println("The most likely model is " + bestModel + " Gaussians");
+    }
+    else if (args.length<2 || args.length>4 || !hasOptions(args,2,new String[] {"-warm","-em"}))
     {
-      System.out.println("Wrong usage. Type java kMeans [data file] [maximum number of clusters]");
+      System.out.println("Wrong usage. Type java kMeans [data file] [maximum number of clusters] [-warm] [-em]");
+      System.out.println("            or java kMeans -convert [data file] [instance file]");
+      System.out.println("            or java kMeans -minibatch [instance file] [maximum number of clusters] [batch size]");
       System.out.println("Make sure the data file contains the number of instances and the number of attributes");
     }
     else
@@ -347,19 +1304,20 @@ public class kMeans
       // each instance the number of attributes (see data.txt)
       DataSet dataFile = new DataSet(args[0]);
       int maxk = Integer.parseInt(args[1]);
+      boolean warmStart=Arrays.asList(args).contains("-warm");
+      boolean em=Arrays.asList(args).contains("-em");
 
-      // make the instance array
+      // make the instance array, one instance after the other
       int numInstances=dataFile.size();
       int d=dataFile.getAttributeNum();
-      PointND[] x=new PointND[numInstances];
+      double[] x=new double[numInstances*d];
       Example instance;
       for (int i=0;i<numInstances;i++)
       {
         instance=dataFile.getExample(i);
-        x[i]=new PointND(d);
         for (int k=0;k<d;k++)
         {
-          x[i].setCoordinate(k,instance.getAttribute(k));
+          x[i*d+k]=instance.getAttribute(k);
         }
       }
 
@@ -371,29 +1329,29 @@ public class kMeans
       double epsilon=0.01;                    // make it data driven (right now absolute..)
 
       // run the k-means algorithm on this datafile with a max number of clusters as maxk
-      kMeans algorithm=new kMeans();
       // Try with k clusters....till maxk clusters
-      int bestModel=1;
-      double bestMDL=1000000000;              // change this
-      for (int k=1;k<=maxk;k++)
-      {
-        algorithm.run(x,k,epsilon);
-        algorithm.printResults();
-        if (algorithm.getMDL() < bestMDL)
-        {
-          bestModel=k;
-          bestMDL=algorithm.getMDL();
-        }
-      }
+      kMeansSelection selection=new kMeansSelection();
+      selection.setNumThreads(Runtime.getRuntime().availableProcessors());
+      selection.setWarmStart(warmStart);
+      selection.setVerbose(true);
+      kMeans bestModel=selection.select(x,d,maxk,epsilon);
       // Report the best model
       System.out.println("********************************************");
-      System.out.println("The most likely model is " + bestModel + " Gaussians");
+      System.out.println("The most likely model is " + bestModel.getNumClusters() + " Gaussians");
 
       // write into file testClustering.txt the most likely model
-      algorithm.run(x,bestModel,epsilon);
-      algorithm.writeFile(out);
+      bestModel.writeFile(out);
       out.close();
+
+      // refine the most likely model into a Gaussian mixture
+      if (em)
+      {
+        kMeansEM mixture=new kMeansEM();
+        mixture.setNumThreads(Runtime.getRuntime().availableProcessors());
+        mixture.run(x,d,bestModel,epsilon);
+        mixture.printResults();
+      }
     }
   }
 
-}
\ No newline at end of file
+}
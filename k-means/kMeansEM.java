@@ -0,0 +1,449 @@
+/**
+ * Gaussian mixture fitted by expectation maximization from a k-means model
+  * Author: Alex Ksikes
+**/
+
+import java.util.*;
+import java.util.concurrent.*;
+import distance.*;
+
+/**
+ * The k Gaussians have diagonal covariance matrices and start from the means,
+ * standard deviations and priors of a k-means model. Each iteration computes
+ * the responsibility of each Gaussian for each instance (E-step) and
+ * re-estimates the Gaussians from the instances weighed by their
+ * responsibilities (M-step), until the log likelihood gains less than epsilon.
+ * As in kMeans, the instances are split into chunks of kMeans.CHUNK_SIZE
+ * which may be handled by several threads. Each chunk sums its weighed
+ * instances into buffers of its own, allocated once for the run, and the sums
+ * of the chunks are added up in order, so the model does not depend on the
+ * number of threads. The likelihood is summed in log space.
+ * The log likelihood and the MDL are computed as in kMeans (in bits), the
+ * number of instances of a Gaussian being the sum of its responsibilities,
+ * so that they can be compared with those of k-means.
+**/
+public class kMeansEM
+{
+
+  private int n;                          // number of instances
+  private int d;                          // number of coordinates of each point
+  private int k;                          // number of Gaussians
+  private double[] x;                     // coordinate c of instance i at x[i*d+c]
+  private double[] mu;                    // coordinate c of the mean of Gaussian j at mu[j*d+c]
+  private double[] sigma;                 // holds the standard deviation of each Gaussian j (as mu)
+  private double[] prior;                 // holds the prior of each Gaussian j
+  private double[] weight;                // sum of the responsibilities of each Gaussian j
+  private double[] minVariance;           // the smallest variance allowed for each coordinate
+  private double[] logNormalizer;         // log of the prior over the normalizing constant of each Gaussian j
+  private double[][] precision;           // the inverse of the variance of each coordinate of each Gaussian j
+  private double logLikelihood;           // log likelihood of the instances (in bits)
+  private double MDL;                     // the minimum description length of the model
+  private int numIterations;
+  private int maxIterations;              // largest number of iterations of a run
+  private int numThreads;                 // number of threads working on the chunks
+  private int numChunks;                  // number of chunks of instances
+  private double[][] chunkWeight;         // sum of the responsibilities over the instances of each chunk
+  private double[][] chunkSums;           // weighed sum of the deviations from each mean over each chunk (as mu)
+  private double[][] chunkSquares;        // weighed sum of the squared deviations over each chunk (as mu)
+  private double[][] chunkTerms;          // log of the prior times the density of each Gaussian for an instance
+  private double[] chunkLikelihood;       // log likelihood of the instances of each chunk
+  private ForkJoinPool pool;              // the threads working on the chunks (null if serial)
+
+  public static final double MIN_VARIANCE=1e-6;  // smallest variance relative to the variance of the data
+
+  private static final DistanceKernel kernel=DistanceKernel.getInstance();
+
+  /**
+   * Default constructor
+  **/
+  public kMeansEM()
+  {
+    this.numThreads=1;
+    this.maxIterations=1000;
+  }
+
+  /**
+   * Set the number of threads computing the responsibilities (1 by default)
+  **/
+  public void setNumThreads(int numThreads)
+  {
+    this.numThreads=Math.max(1,numThreads);
+  }
+
+  /**
+   * Set the largest number of iterations of a run (1000 by default)
+  **/
+  public void setMaxIterations(int maxIterations)
+  {
+    this.maxIterations=maxIterations;
+  }
+
+  /**
+   * Start the Gaussians from the clusters of a k-means model
+   * Empty clusters are left out (their prior stays zero) and the variances
+   * are kept above MIN_VARIANCE times the variance of the data, so that no
+   * Gaussian collapses onto a single point.
+  **/
+  private void init(double[] x,int d,kMeans model)
+  {
+    this.n=x.length/d;
+    this.d=d;
+    this.k=model.getNumClusters();
+    this.x=x;
+    this.mu=(double[]) model.getMeans().clone();
+    this.sigma=(double[]) model.getDeviations().clone();
+    this.prior=(double[]) model.getPriors().clone();
+    this.weight=new double[k];
+    this.minVariance=new double[d];
+    this.logNormalizer=new double[k];
+    this.precision=new double[k][d];
+    this.numIterations=0;
+    this.numChunks=(n+kMeans.CHUNK_SIZE-1)/kMeans.CHUNK_SIZE;
+    this.chunkWeight=new double[numChunks][k];
+    this.chunkSums=new double[numChunks][k*d];
+    this.chunkSquares=new double[numChunks][k*d];
+    this.chunkTerms=new double[numChunks][k];
+    this.chunkLikelihood=new double[numChunks];
+
+    // the variance of the data is the mean variance of the clusters
+    // plus the variance of their means
+    double mean;
+    double meanSquare;
+    for (int c=0;c<d;c++)
+    {
+      mean=0;
+      meanSquare=0;
+      for (int j=0;j<k;j++)
+      {
+        if (prior[j] > 0)
+        {
+          mean=mean + prior[j]*mu[j*d+c];
+          meanSquare=meanSquare + prior[j]*(sigma[j*d+c]*sigma[j*d+c] + mu[j*d+c]*mu[j*d+c]);
+        }
+      }
+      minVariance[c]=MIN_VARIANCE*Math.max(meanSquare - mean*mean,Double.MIN_NORMAL);
+    }
+    for (int j=0;j<k;j++)
+    {
+      if (!(prior[j] > 0))
+      {
+        prior[j]=0;
+        continue;
+      }
+      for (int c=0;c<d;c++)
+      {
+        if (!(sigma[j*d+c]*sigma[j*d+c] >= minVariance[c]))
+          sigma[j*d+c]=Math.sqrt(minVariance[c]);
+      }
+    }
+  }
+
+  /**
+   * Fit the Gaussians to the instances held row after row in x with d
+   * coordinates each, starting from a k-means model run on the same instances
+   * Iterates until the log likelihood (in bits) gains less than epsilon, or
+   * maxIterations times. Then find the quality of the model.
+  **/
+  public void run(double[] x,int d,kMeans model,double epsilon)
+  {
+    double oldLikelihood=Double.NEGATIVE_INFINITY;
+    init(x,d,model);
+    if (numThreads > 1 && numChunks > 1)
+      pool=new ForkJoinPool(numThreads);
+    try
+    {
+      while (true)
+      {
+        // compute the responsibilities and the likelihood of the Gaussians as they stand
+        expectation();
+        if (!(logLikelihood - oldLikelihood >= epsilon) || numIterations >= maxIterations)
+          break;
+        // re-estimate the Gaussians from the weighed instances
+        maximization();
+        oldLikelihood=logLikelihood;
+        numIterations++;
+      }
+      // the likelihood is the one of the Gaussians kept
+      computeMDL();
+    }
+    finally
+    {
+      if (pool != null)
+        pool.shutdown();
+      pool=null;
+    }
+  }
+
+  /**
+   * Compute the responsibilities of the Gaussians for every instance, summed
+   * for each chunk, and the log likelihood of the instances
+  **/
+  private void expectation()
+  {
+    computeNormalizers();
+    forEachChunk();
+    logLikelihood=0;
+    for (int chunk=0;chunk<numChunks;chunk++)
+      logLikelihood=logLikelihood + chunkLikelihood[chunk];
+  }
+
+  /**
+   * Compute the log of the prior over the normalizing constant of each Gaussian
+   * and the inverse of its variances (a Gaussian of zero prior is left out)
+  **/
+  private void computeNormalizers()
+  {
+    double logSigma;
+    for (int j=0;j<k;j++)
+    {
+      logSigma=0;
+      for (int c=0;c<d;c++)
+      {
+        logSigma=logSigma + Math.log(sigma[j*d+c]);
+        precision[j][c]=1.0/(sigma[j*d+c]*sigma[j*d+c]);
+      }
+      if (prior[j] > 0)
+        logNormalizer[j]=Math.log(prior[j]) - d/2.0*Math.log(2*Math.PI) - logSigma;
+      else
+        logNormalizer[j]=Double.NEGATIVE_INFINITY;
+    }
+  }
+
+  /**
+   * Do the E-step on every chunk, with the pool if there is one
+  **/
+  private void forEachChunk()
+  {
+    if (pool == null)
+    {
+      for (int chunk=0;chunk<numChunks;chunk++)
+        expectation(chunk);
+      return;
+    }
+    List tasks=new ArrayList();
+    for (int chunk=0;chunk<numChunks;chunk++)
+    {
+      final int index=chunk;
+      tasks.add(new Callable()
+      {
+        public Object call()
+        {
+          expectation(index);
+          return null;
+        }
+      });
+    }
+    try
+    {
+      List results=pool.invokeAll(tasks);
+      for (int chunk=0;chunk<numChunks;chunk++)
+        ((Future) results.get(chunk)).get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Compute the responsibilities of the Gaussians for the instances of a chunk
+   * and sum the instances weighed by them, as deviations from the means so
+   * that the variances do not lose precision. Nothing is allocated.
+  **/
+  private void expectation(int chunk)
+  {
+    int from=chunk*kMeans.CHUNK_SIZE;
+    int to=Math.min(from+kMeans.CHUNK_SIZE,n);
+    double[] weight=chunkWeight[chunk];
+    double[] sums=chunkSums[chunk];
+    double[] squares=chunkSquares[chunk];
+    double[] logTerm=chunkTerms[chunk];
+    Arrays.fill(weight,0);
+    Arrays.fill(sums,0);
+    Arrays.fill(squares,0);
+    double largest;
+    double logSum;
+    double responsibility;
+    double diff;
+    double temp2=0;
+    double ln2=Math.log(2);
+    for (int i=from;i<to;i++)
+    {
+      // log of the prior times the density of each Gaussian j
+      largest=Double.NEGATIVE_INFINITY;
+      for (int j=0;j<k;j++)
+      {
+        if (prior[j] > 0)
+          logTerm[j]=logNormalizer[j] - 1.0/2*kernel.weightedSquaredDist(x,i*d,mu,j*d,precision[j],d);
+        else
+          logTerm[j]=Double.NEGATIVE_INFINITY;
+        if (logTerm[j] > largest || Double.isNaN(logTerm[j]))
+          largest=logTerm[j];
+      }
+      if (Double.isInfinite(largest) || Double.isNaN(largest))
+      {
+        // no Gaussian can explain the instance
+        temp2=temp2 + largest;
+        continue;
+      }
+      // log-sum-exp
+      logSum=0;
+      for (int j=0;j<k;j++)
+        logSum=logSum + Math.exp(logTerm[j]-largest);
+      logSum=largest + Math.log(logSum);
+      temp2=temp2 + logSum/ln2;
+
+      // weigh the instance by the responsibility of each Gaussian
+      for (int j=0;j<k;j++)
+      {
+        responsibility=Math.exp(logTerm[j]-logSum);
+        if (responsibility==0)
+          continue;
+        weight[j]=weight[j] + responsibility;
+        for (int c=0;c<d;c++)
+        {
+          diff=x[i*d+c]-mu[j*d+c];
+          sums[j*d+c]=sums[j*d+c] + responsibility*diff;
+          squares[j*d+c]=squares[j*d+c] + responsibility*diff*diff;
+        }
+      }
+    }
+    chunkLikelihood[chunk]=temp2;
+  }
+
+  /**
+   * Re-estimate the prior, mean and standard deviation of each Gaussian from
+   * the sums of the chunks added up in order
+   * A Gaussian given no instance is left out (its prior becomes zero).
+  **/
+  private void maximization()
+  {
+    double shift;
+    double variance;
+    Arrays.fill(weight,0);
+    for (int chunk=0;chunk<numChunks;chunk++)
+    {
+      for (int j=0;j<k;j++)
+        weight[j]=weight[j] + chunkWeight[chunk][j];
+    }
+    for (int j=0;j<k;j++)
+    {
+      prior[j]=weight[j]/n;
+      if (!(weight[j] > 0))
+        continue;
+      for (int c=0;c<d;c++)
+      {
+        shift=0;
+        variance=0;
+        for (int chunk=0;chunk<numChunks;chunk++)
+        {
+          shift=shift + chunkSums[chunk][j*d+c];
+          variance=variance + chunkSquares[chunk][j*d+c];
+        }
+        shift=shift/weight[j];
+        variance=variance/weight[j] - shift*shift;
+        mu[j*d+c]=mu[j*d+c] + shift;
+        sigma[j*d+c]=Math.sqrt(Math.max(variance,minVariance[c]));
+      }
+    }
+  }
+
+  /**
+   * Assume the log likelihood and priors have been computed
+   * As kMeans.computeMDL with the sum of the responsibilities of each Gaussian
+   * as its number of instances (Gaussians left out do not count)
+  **/
+  private void computeMDL()
+  {
+    double temp=0;
+    double numInstances;
+    double ln2=Math.log(2);
+    for (int j=0;j<k;j++)
+    {
+      if (!(prior[j] > 0))
+        continue;
+      numInstances=prior[j]*n;
+      for (int i=0;i<d;i++)
+      {
+        temp=temp - Math.log( sigma[j*d+i]/Math.sqrt(numInstances) )/ln2;
+      }
+    }
+    MDL=temp - logLikelihood;
+  }
+
+  /**
+   * Report the results
+   * Assumes the algorithm was run
+  **/
+  public void printResults()
+  {
+    System.out.println("********************************************");
+    System.out.println("Mixture of " + k + " Gaussians...");
+    System.out.println("Converged after " + numIterations + " iterations");
+    for (int j=0;j<k;j++)
+    {
+      System.out.println();
+      System.out.println("Gaussian no. " + (j+1));
+      System.out.println("---------------");
+      System.out.println("mean " + toString(mu,j*d));
+      System.out.println("sigma " + toString(sigma,j*d));
+      System.out.println("prior " + prior[j]);
+    }
+    System.out.println();
+    System.out.println("Model quality:");
+    System.out.println("Log-Likelihood " + logLikelihood);
+    System.out.println("MdL " + MDL);
+  }
+
+  public double getMDL()
+  {
+    return MDL;
+  }
+
+  public double getLogLikelihood()
+  {
+    return logLikelihood;
+  }
+
+  public int getNumIterations()
+  {
+    return numIterations;
+  }
+
+  /**
+   * Return the means of the Gaussians, row after row
+  **/
+  public double[] getMeans()
+  {
+    return mu;
+  }
+
+  /**
+   * Return the standard deviations of the Gaussians (as the means)
+  **/
+  public double[] getDeviations()
+  {
+    return sigma;
+  }
+
+  public double[] getPriors()
+  {
+    return prior;
+  }
+
+  /**
+   * Return the d coordinates of a starting at offset as PointND prints them
+  **/
+  private String toString(double[] a,int offset)
+  {
+    String s="" + a[offset];
+    for (int c=1;c<d;c++)
+      s=s + " " + a[offset+c];
+    return s;
+  }
+}
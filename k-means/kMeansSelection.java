@@ -0,0 +1,202 @@
+/**
+ * Choice of the number of clusters of k-means by minimum description length
+  * Author: Alex Ksikes
+**/
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs k-means with 1 to maxk clusters and keeps the model of smallest MDL.
+ * The models are run at the same time, each with one thread, unless they are
+ * warm started: the model with k+1 clusters then starts from the model with k
+ * clusters where its worst cluster is split in two (see
+ * kMeans.splitWorstCluster), so the models are run one after the other, each
+ * with all the threads.
+ * Only the best model so far is kept, so that it need not be run again.
+**/
+public class kMeansSelection
+{
+
+  private int numThreads;                 // number of threads running the models
+  private boolean warmStart;              // whether each model starts from the previous one
+  private int seeding;                    // how the means of the models not warm started are chosen
+  private boolean seeded;                 // whether the runs are seeded
+  private long seed;                      // the seed of the run with k clusters is seed+k
+  private boolean verbose;                // whether the results of each model are printed
+  private double[] MDL;                   // the MDL of the model with k clusters at MDL[k-1]
+  private kMeans best;                    // the model of smallest MDL
+
+  /**
+   * Default constructor
+  **/
+  public kMeansSelection()
+  {
+    this.numThreads=1;
+    this.seeding=kMeans.PLUS_PLUS;
+  }
+
+  /**
+   * Set the number of threads running the models (1 by default)
+  **/
+  public void setNumThreads(int numThreads)
+  {
+    this.numThreads=Math.max(1,numThreads);
+  }
+
+  /**
+   * Set whether the model with k+1 clusters starts from the model with k clusters
+   * (false by default)
+  **/
+  public void setWarmStart(boolean warmStart)
+  {
+    this.warmStart=warmStart;
+  }
+
+  /**
+   * Set how the means are chosen when a model is not warm started (see kMeans.setSeeding)
+  **/
+  public void setSeeding(int seeding)
+  {
+    this.seeding=seeding;
+  }
+
+  /**
+   * Seed the runs so that the selection can be repeated
+  **/
+  public void setSeed(long seed)
+  {
+    this.seeded=true;
+    this.seed=seed;
+  }
+
+  /**
+   * Set whether the results of each model are printed as it is run
+  **/
+  public void setVerbose(boolean verbose)
+  {
+    this.verbose=verbose;
+  }
+
+  /**
+   * Run k-means with 1 to maxk clusters on the instances held row after row
+   * in x with d coordinates each, and return the model of smallest MDL (the
+   * fewest clusters in case of ties)
+  **/
+  public kMeans select(double[] x,int d,int maxk,double epsilon)
+  {
+    MDL=new double[maxk];
+    best=null;
+    if (warmStart || numThreads==1 || maxk==1)
+      selectInTurn(x,d,maxk,epsilon);
+    else
+      selectAtOnce(x,d,maxk,epsilon);
+    return best;
+  }
+
+  /**
+   * Run the models one after the other, each with all the threads
+  **/
+  private void selectInTurn(double[] x,int d,int maxk,double epsilon)
+  {
+    kMeans previous=null;
+    double[] means;
+    for (int k=1;k<=maxk;k++)
+    {
+      kMeans algorithm=newModel(k,numThreads);
+      means=(warmStart && previous != null ? previous.splitWorstCluster() : null);
+      if (means != null)
+        algorithm.run(x,d,means,epsilon);
+      else
+        algorithm.run(x,d,k,epsilon);
+      keep(algorithm);
+      previous=algorithm;
+    }
+  }
+
+  /**
+   * Run the models at the same time, each with one thread
+   * The models are compared in order as they are done.
+  **/
+  private void selectAtOnce(final double[] x,final int d,int maxk,final double epsilon)
+  {
+    ForkJoinPool pool=new ForkJoinPool(Math.min(numThreads,maxk));
+    try
+    {
+      List results=new ArrayList();
+      for (int k=1;k<=maxk;k++)
+      {
+        final kMeans algorithm=newModel(k,1);
+        final int numClusters=k;
+        results.add(pool.submit(new Callable()
+        {
+          public Object call()
+          {
+            algorithm.run(x,d,numClusters,epsilon);
+            return algorithm;
+          }
+        }));
+      }
+      for (int k=1;k<=maxk;k++)
+      {
+        keep((kMeans) ((Future) results.get(k-1)).get());
+        results.set(k-1,null);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Return a model with k clusters to run with the specified number of threads
+  **/
+  private kMeans newModel(int k,int threads)
+  {
+    kMeans algorithm=new kMeans();
+    algorithm.setNumThreads(threads);
+    algorithm.setSeeding(seeding);
+    if (seeded)
+      algorithm.setSeed(seed+k);
+    return algorithm;
+  }
+
+  /**
+   * Record the MDL of a model which was run, and keep it if it is the best so far
+  **/
+  private void keep(kMeans algorithm)
+  {
+    int k=algorithm.getNumClusters();
+    MDL[k-1]=algorithm.getMDL();
+    if (verbose)
+      algorithm.printResults();
+    if (best==null || algorithm.getMDL() < best.getMDL() || Double.isNaN(best.getMDL()))
+      best=algorithm;
+  }
+
+  /**
+   * Return the MDL of the model with k clusters of the last selection
+  **/
+  public double getMDL(int k)
+  {
+    return MDL[k-1];
+  }
+
+  /**
+   * Return the model of smallest MDL of the last selection
+  **/
+  public kMeans getBestModel()
+  {
+    return best;
+  }
+}
@@ -0,0 +1,258 @@
+/**
+ * A source of instances for the k-means algorithm
+  * Author: Alex Ksikes
+**/
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * The instances are read on demand, a range or a single instance at a time,
+ * so that they need not be held in memory (see open). Sources are not meant
+ * to be read by several threads at once.
+**/
+public abstract class kMeansSource
+{
+
+  public static final int MAGIC=0x4B4D4E53;   // "KMNS"
+  public static final int VERSION=1;
+  private static final int HEADER_SIZE=16;    // four ints
+
+  /**
+   * Return the number of instances
+  **/
+  public abstract int size();
+
+  /**
+   * Return the number of coordinates of each instance
+  **/
+  public abstract int getDimension();
+
+  /**
+   * Read the instances from to to (excluded) row after row into rows
+  **/
+  public abstract void read(int from,int to,double[] rows) throws IOException;
+
+  /**
+   * Read the instance i into rows starting at offset
+  **/
+  public abstract void read(int i,double[] rows,int offset) throws IOException;
+
+  /**
+   * Read size instances drawn at random (with replacement) row after row into rows
+  **/
+  public void sample(Random random,int size,double[] rows) throws IOException
+  {
+    int d=getDimension();
+    for (int r=0;r<size;r++)
+      read(random.nextInt(size()),rows,r*d);
+  }
+
+  /**
+   * Release the resources held by this source
+  **/
+  public void close() throws IOException
+  {
+  }
+
+  /**
+   * Return a source over the instances held row after row in x with d coordinates each
+  **/
+  public static kMeansSource wrap(double[] x,int d)
+  {
+    return new ArraySource(x,d);
+  }
+
+  /**
+   * Return a source reading the instances from a binary file written by write
+  **/
+  public static kMeansSource open(String filename) throws IOException
+  {
+    return new FileSource(filename);
+  }
+
+  /**
+   * Write the instances of a data file into a binary file which open reads
+   * The data file has as its first line the number of instances and the
+   * number of attributes, then one instance per line (further numbers on a
+   * line, such as a label, are ignored). It is read one line at a time.
+  **/
+  public static void write(String dataFile,String filename) throws IOException
+  {
+    BufferedReader in=new BufferedReader(new FileReader(dataFile));
+    DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+    try
+    {
+      StringTokenizer st=new StringTokenizer(in.readLine());
+      int n=Integer.parseInt(st.nextToken());
+      int d=Integer.parseInt(st.nextToken());
+      // header of four ints
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(n);
+      out.writeInt(d);
+      String line;
+      int i=0;
+      while (i<n && (line=in.readLine()) != null)
+      {
+        st=new StringTokenizer(line," ,\t");
+        if (!st.hasMoreTokens())
+          continue;
+        for (int c=0;c<d;c++)
+          out.writeDouble(Double.parseDouble(st.nextToken()));
+        i++;
+      }
+      if (i<n)
+        throw new IOException("Only " + i + " instances out of " + n + " in " + dataFile);
+    }
+    finally
+    {
+      in.close();
+      out.close();
+    }
+  }
+
+  /**
+   * The instances of an array
+  **/
+  private static class ArraySource extends kMeansSource
+  {
+    private double[] x;
+    private int d;
+
+    ArraySource(double[] x,int d)
+    {
+      this.x=x;
+      this.d=d;
+    }
+
+    public int size()
+    {
+      return x.length/d;
+    }
+
+    public int getDimension()
+    {
+      return d;
+    }
+
+    public void read(int from,int to,double[] rows)
+    {
+      System.arraycopy(x,from*d,rows,0,(to-from)*d);
+    }
+
+    public void read(int i,double[] rows,int offset)
+    {
+      System.arraycopy(x,i*d,rows,offset,d);
+    }
+  }
+
+  /**
+   * The instances of a binary file, read with positioned reads so that
+   * files of any size can be sampled
+  **/
+  private static class FileSource extends kMeansSource
+  {
+    private static final int BUFFER_SIZE=1 << 23;   // most bytes read at once
+
+    private FileChannel channel;
+    private int n;
+    private int d;
+    private ByteBuffer buffer;      // the bytes last read (grown as needed up to BUFFER_SIZE)
+
+    FileSource(String filename) throws IOException
+    {
+      this.channel=new RandomAccessFile(filename,"r").getChannel();
+      try
+      {
+        if (channel.size() < HEADER_SIZE)
+          throw new IOException(filename + " is not an instance file");
+        ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header,0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+          throw new IOException(filename + " is not an instance file");
+        this.n=header.getInt(8);
+        this.d=header.getInt(12);
+        if (n < 0 || d <= 0)
+          throw new IOException(filename + " has " + n + " instances of " + d + " coordinates");
+        // the file holds exactly n*d doubles after the header
+        long length=channel.size() - HEADER_SIZE;
+        if (length%8 != 0 || length/8 != (long) n*d)
+          throw new IOException(filename + " should hold " + n + " instances of " + d + " coordinates but has " + length + " bytes of them");
+      }
+      catch (IOException e)
+      {
+        channel.close();
+        throw e;
+      }
+      this.buffer=ByteBuffer.allocate((int) Math.min(8L*d,BUFFER_SIZE));
+    }
+
+    public int size()
+    {
+      return n;
+    }
+
+    public int getDimension()
+    {
+      return d;
+    }
+
+    public void read(int from,int to,double[] rows) throws IOException
+    {
+      if (from < 0 || to > n || from > to || (long) (to-from)*d > rows.length)
+        throw new IllegalArgumentException("Cannot read instances " + from + " to " + to + " out of " + n + " into " + rows.length + " values");
+      readDoubles(HEADER_SIZE + 8L*d*from,rows,0,(to-from)*d);
+    }
+
+    public void read(int i,double[] rows,int offset) throws IOException
+    {
+      readDoubles(HEADER_SIZE + 8L*d*i,rows,offset,d);
+    }
+
+    public void close() throws IOException
+    {
+      channel.close();
+    }
+
+    /**
+     * Read count doubles of the file starting at position into rows from offset,
+     * at most BUFFER_SIZE bytes at a time so that blocks of any size can be read
+    **/
+    private void readDoubles(long position,double[] rows,int offset,int count) throws IOException
+    {
+      int length;
+      while (count > 0)
+      {
+        length=Math.min(count,BUFFER_SIZE/8);
+        if (buffer.capacity() < 8*length)
+          buffer=ByteBuffer.allocate(8*length);
+        buffer.clear();
+        buffer.limit(8*length);
+        readFully(buffer,position);
+        buffer.asDoubleBuffer().get(rows,offset,length);
+        position=position + 8L*length;
+        offset=offset + length;
+        count=count - length;
+      }
+    }
+
+    /**
+     * Fill the buffer up to its limit with the bytes of the file starting at position
+    **/
+    private void readFully(ByteBuffer buffer,long position) throws IOException
+    {
+      int read;
+      while (buffer.hasRemaining())
+      {
+        read=channel.read(buffer,position);
+        if (read < 0)
+          throw new EOFException();
+        position=position + read;
+      }
+      buffer.flip();
+    }
+  }
+}
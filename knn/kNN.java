@@ -3,7 +3,9 @@
  * @author Alex Ksikes
  **/
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import ann.*;
 
 /**
@@ -21,15 +23,38 @@ public class kNN
   private int testSetSize;          // size of the final test set
   private kNNExample[] trainSet;    // the training set
   private kNNExample[] testSet;     // the final test set
+  private kNNMatrix trainMatrix;    // the features of the training set row after row
+  private kNNMatrix testMatrix;     // the features of the test set row after row
+  private kNNFeatureStats trainStats; // min, max and variance of each feature of the training set
   private int[][] numCorrect;       // keeps track of the number correctly classified instances
   private double[][] squaredError;  // keeps track of the squared error
   private double[][][] predictions;
+  private int[] trainIds;           // the id of each example of the training set
+  private int[] trainLabels;        // the class label of each example of the training set
+  private kNNIndex trainIndex;      // neighbor index over the training set
+  private kNNSearch exactSearch;    // exact search under the metric (the index for the Euclidean distance)
+  private kNNSearch trainSearch;    // search used by the queries (the exact search or an approximation)
+  private kNNMetric metric;         // distance between examples
+  private kNNBatch trainBatch;      // blocked search of many queries at once (null if not used)
+  private kNNQuantizedMatrix trainCodes; // the training set quantized to a byte per feature (null until quantized)
+  private double[] featureWeights;  // weights of the distance between examples
+  private ThreadLocal scratch;      // neighbor heap and sweep buffers of each querying thread
+  private kNNQueryStats queryStats; // latency of the queries and where it is spent
 
   /**
    * Initialize the training set and the test set of the kNN algorithm
    * The test set is made from the all the other examples not taken for the training
   **/
   public kNN(DataSet dataFile, int trainSetSize)
+  {
+    this(dataFile, trainSetSize, false);
+  }
+
+  /**
+   * Same as above but the features may be stored in single precision
+   * to halve the memory used by the train and test sets
+  **/
+  public kNN(DataSet dataFile, int trainSetSize, boolean singlePrecision)
   {
     // Fix the data set from which the training set and test are made
     this.dataFile = dataFile;
@@ -50,8 +75,97 @@ public class kNN
       index++;
     }
 
+    // Store the features row after row
+    int numAttributes = dataFile.getAttributeNum();
+    trainMatrix = new kNNMatrix(trainSet, numAttributes, singlePrecision);
+    testMatrix = new kNNMatrix(testSet, numAttributes, singlePrecision);
+
     // Scale feature weights (use the train set for that)
     scaleFeatureWeights(1);
+
+    // Index the training set under the weighted distance
+    trainIds = new int[trainSetSize];
+    trainLabels = new int[trainSetSize];
+    for (int i=0; i < trainSetSize; i++)
+    {
+      trainIds[i] = trainSet[i].getId();
+      trainLabels[i] = trainSet[i].getClassLabel();
+    }
+    trainIndex = kNNIndex.build(trainMatrix, trainIds, featureWeights);
+    scratch = new ThreadLocal();
+    queryStats = new kNNQueryStats();
+    setMetric(kNNMetric.EUCLIDEAN);
+  }
+
+  /**
+   * Make a kNN from a saved training set (see kNNSnapshot)
+   * It is meant to predict: there is no test set and the examples are not kept.
+   * It searches with the quantized search if one is given (null otherwise).
+  **/
+  kNN(kNNMatrix trainMatrix, int[] trainIds, int[] trainLabels, double[] featureWeights, kNNIndex trainIndex,
+      kNNQuantizedSearch quantized)
+  {
+    this.trainSetSize = trainMatrix.numRows();
+    this.testSetSize = 0;
+    this.trainMatrix = trainMatrix;
+    this.trainIds = trainIds;
+    this.trainLabels = trainLabels;
+    this.featureWeights = featureWeights;
+    this.trainIndex = trainIndex;
+    this.exactSearch = trainIndex;
+    this.trainSearch = trainIndex;
+    if (quantized != null)
+    {
+      this.trainCodes = quantized.getCodes();
+      this.trainSearch = quantized;
+    }
+    this.metric = kNNMetric.getInstance(kNNMetric.EUCLIDEAN, featureWeights);
+    this.scratch = new ThreadLocal();
+    this.queryStats = new kNNQueryStats();
+  }
+
+  /**
+   * Set the distance between examples (see kNNMetric for the types)
+   * The Euclidean distance is searched with the index, the other metrics
+   * with a kNNPivotSearch built over the training set.
+  **/
+  public void setMetric(int type)
+  {
+    metric = kNNMetric.getInstance(type, featureWeights);
+    if (type == kNNMetric.EUCLIDEAN)
+      exactSearch = trainIndex;
+    else
+      exactSearch = new kNNPivotSearch(trainMatrix, trainIds, metric, kNNPivotSearch.NUM_PIVOTS);
+    trainSearch = exactSearch;
+  }
+
+  /**
+   * Save the training set, its feature weights and its index into a snapshot
+   * which kNNSnapshot.load() maps back. The quantized features are saved too
+   * if the queries are answered by the quantized search (see setQuantized).
+  **/
+  public void save(String filename) throws IOException
+  {
+    kNNQuantizedSearch quantized = null;
+    if (trainSearch instanceof kNNQuantizedSearch)
+      quantized = (kNNQuantizedSearch) trainSearch;
+    kNNSnapshot.save(filename, trainMatrix, trainIds, trainLabels, featureWeights, trainIndex, quantized);
+  }
+
+  /**
+   * Return the number of features of each example
+  **/
+  public int getNumFeatures()
+  {
+    return featureWeights.length;
+  }
+
+  /**
+   * Return the number of examples of the training set
+  **/
+  public int getTrainSetSize()
+  {
+    return trainSetSize;
   }
 
   /**
@@ -62,6 +176,7 @@ public class kNN
   **/
   public int[] train(int k[], int kernel[])
   {
+    checkExamples();
     // Initialize numCorrect and squaredError arrays
     numCorrect = new int[kernel.length][k.length];
     squaredError = new double[kernel.length][k.length];
@@ -70,27 +185,29 @@ public class kNN
     // Set up the number of nearest neighbors and the kernel widths
     this.k =k;
     this.kernel = kernel;
+    queryStats.reset();
 
     // Repeteadly test each query example on the remaining part of the training set
     // and update the correclty classified examples and their squared error
     kNNExample queryExample;                                       // the query example
-    kNNExample[] subTrainSet = new kNNExample[trainSetSize - 1];   // the remaing train set
-    int index = 0;
+    kNNHeap[] neighbors = new kNNHeap[kNNBatch.QUERY_BLOCK];       // the neighbors of a block of queries
+    int[] numDistances = new int[kNNBatch.QUERY_BLOCK];            // the distances computed for each query of the block
+    long searchTime = 0;                                           // search time of each query of the block
     for (int i=0; i < trainSetSize; i++)
     {
-      index = 0;
       queryExample = trainSet[i];
-      // set up the sub-training set on wich the query example will be tested
-      for (int j=0; j < trainSetSize; j++)
+      // test the query example on the rest of the training set
+      // by leaving it out of the search
+      if (k[k.length-1] < trainSetSize - 1 && isBatch())
       {
-        if (!queryExample.equals(trainSet[j]))
-        {
-          subTrainSet[index] = trainSet[j];
-          index++;
-        }
+        if (i % kNNBatch.QUERY_BLOCK == 0)
+          searchTime = searchBlock(trainMatrix, i, Math.min(i + kNNBatch.QUERY_BLOCK, trainSetSize), trainIds, neighbors, numDistances);
+        predictions[i]=testNeighbors(neighbors[i % kNNBatch.QUERY_BLOCK], queryExample.getClassLabel(), searchTime, numDistances[i % kNNBatch.QUERY_BLOCK]);
       }
-      // test the query example on this sub-training set
-      predictions[i]=testSingle(queryExample, subTrainSet);
+      else if (k[k.length-1] < trainSetSize - 1)
+        predictions[i]=testSingle(trainMatrix, i, queryExample.getClassLabel(), queryExample.getId());
+      else
+        predictions[i]=testSingle(queryExample, trainSet, queryExample.getId());
       // print the results with smallest value of kernel width and smallest k
       if (i%25 == 0)
         printSimple(i);
@@ -106,11 +223,92 @@ public class kNN
 
   }
 
+  /**
+   * Same as train(k, kernel) but the LOOCV queries are split across numThreads
+   * workers of a ForkJoinPool, each keeping its own counts of correctly classified
+   * examples. Results are identical to the serial run.
+   * Runs serially when every example is a neighbor (nothing to search then).
+  **/
+  public int[] train(int k[], int kernel[], int numThreads)
+  {
+    if (numThreads <= 1 || k[k.length-1] >= trainSetSize - 1)
+      return train(k, kernel);
+
+    // Initialize squaredError and predictions arrays
+    squaredError = new double[kernel.length][k.length];
+    predictions = new double[trainSetSize][kernel.length][k.length];
+
+    // Set up the number of nearest neighbors and the kernel widths
+    this.k = k;
+    this.kernel = kernel;
+    queryStats.reset();
+
+    // Each worker tests a contiguous block of query examples
+    int grain = Math.max(16, trainSetSize/(8*numThreads));
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try
+    {
+      numCorrect = (int[][]) pool.invoke(new kNNTrainTask(this, 0, trainSetSize, grain));
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+
+    // Sum the squared errors in query order so that they match the serial run
+    int targetLabel;
+    for (int i=0; i < trainSetSize; i++)
+    {
+      targetLabel = trainSet[i].getClassLabel();
+      for (int kernelIndex=0; kernelIndex < kernel.length; kernelIndex++)
+        for (int kIndex=0; kIndex < k.length; kIndex++)
+          squaredError[kernelIndex][kIndex] = squaredError[kernelIndex][kIndex] + Math.pow(targetLabel - predictions[i][kernelIndex][kIndex],2);
+    }
+
+    // Print the final results
+    printResults(trainSetSize-1);
+    System.out.println("-------------------------------------------------------");
+
+    // Return the best value of k and of the kernel width
+    return getBestValues();
+  }
+
+  /**
+   * Leave out and test each train example from index from to to (excluded)
+   * Stores their predictions and returns the number correctly classified
+   * for each kernel width and each number of nearest neighbors.
+   * Only writes to its own rows of predictions so blocks may run concurrently.
+  **/
+  int[][] testLeftOut(int from, int to)
+  {
+    int[][] correct = new int[kernel.length][k.length];
+    double[] features = new double[featureWeights.length];
+    kNNExample queryExample;
+    int targetLabel;
+    for (int i=from; i < to; i++)
+    {
+      queryExample = trainSet[i];
+      trainMatrix.getRow(i, features);
+      predict(features, k, kernel, queryExample.getId(), predictions[i]);
+      targetLabel = queryExample.getClassLabel();
+      for (int kernelIndex=0; kernelIndex < kernel.length; kernelIndex++)
+      {
+        for (int kIndex=0; kIndex < k.length; kIndex++)
+        {
+          if (Math.abs(targetLabel - predictions[i][kernelIndex][kIndex]) <= 0.5)
+            (correct[kernelIndex][kIndex])++;
+        }
+      }
+    }
+    return correct;
+  }
+
   /**
    * Test the test set with values with given values of k[] and kernel[].
   **/
   public void test(int[] bestK, int [] bestKernel)
   {
+    checkExamples();
     // Initialize numCorrect and squaredError arrays
     numCorrect = new int[bestKernel.length][bestK.length];
     squaredError = new double[bestKernel.length][bestK.length];
@@ -119,83 +317,258 @@ public class kNN
     // Set up the number of nearest neighbors and the kernel widths
     this.k = bestK;
     this.kernel = bestKernel;
+    queryStats.reset();
 
     // Evaluate each example from the test set onto the training set
     kNNExample testExample;
+    kNNHeap[] neighbors = new kNNHeap[kNNBatch.QUERY_BLOCK];
+    int[] numDistances = new int[kNNBatch.QUERY_BLOCK];
+    long searchTime = 0;
     for (int i=0; i < testSetSize; i++)
     {
       testExample = testSet[i];   // see about evaluation set if makes more sense
-      predictions[i]=testSingle(testExample, trainSet);
+      if (k[k.length-1] < trainSetSize && isBatch())
+      {
+        if (i % kNNBatch.QUERY_BLOCK == 0)
+          searchTime = searchBlock(testMatrix, i, Math.min(i + kNNBatch.QUERY_BLOCK, testSetSize), null, neighbors, numDistances);
+        predictions[i]=testNeighbors(neighbors[i % kNNBatch.QUERY_BLOCK], testExample.getClassLabel(), searchTime, numDistances[i % kNNBatch.QUERY_BLOCK]);
+      }
+      else if (k[k.length-1] < trainSetSize)
+        predictions[i]=testSingle(testMatrix, i, testExample.getClassLabel(), -1);
+      else
+        predictions[i]=testSingle(testExample, trainSet, -1);
       if (i%25==0)
         printSimple(i);
     }
     printResults(testSetSize-1);
     System.out.println();
+    queryStats.print();
     System.out.println("-------------------------------------------------------");
     printPredictions();
   }
 
   /**
    * Test the single example on a train set
+   * The example of id excludeId is skipped (-1 to consider all of them)
    * Updates the squared error and the number of correctly classified examples
   **/
-  private double[][] testSingle (Example testExample, kNNExample[] trainSet)
+  private double[][] testSingle (kNNExample testExample, kNNExample[] trainSet, int excludeId)
   {
-    // Sort the train set to get the nearest neighbors
+    // Select the nearest neighbors of the train set
     // first set the distance each example is from the test example
+    long start = System.nanoTime();
+    int numDistances = 0;
     for (int i=0; i < trainSet.length; i++)
-      trainSet[i].setRelativeDist(testExample);
-    // only sort if the maximum of neighbors < the size of the train set
+    {
+      if (trainSet[i].getId() != excludeId)
+      {
+        trainSet[i].setRelativeDist(testExample, metric);
+        numDistances++;
+      }
+    }
+    // only select if the maximum of neighbors < the size of the train set
+    kNNSweep sweep = getSweep();
+    long searched, sorted;
     if (k[0] < trainSetSize - 1)
     {
-      kNNComparator comparator = new kNNComparator();
-      Arrays.sort(trainSet, comparator);
+      // keep the k[k.length-1] closest examples and sort them by ascending distance
+      kNNHeap heap = sweep.getHeap(Math.min(k[k.length-1], trainSet.length));
+      for (int i=0; i < trainSet.length; i++)
+      {
+        if (trainSet[i].getId() != excludeId)
+          heap.offer(trainSet[i].getRelativeDist(), i);
+      }
+      searched = System.nanoTime();
+      heap.sort();
+      sorted = System.nanoTime();
+      sweep.load(heap, trainLabels, false);
+    }
+    else
+    {
+      // all the examples are neighbors, sorted when loaded
+      searched = System.nanoTime();
+      sweep.load(trainSet, excludeId, k[k.length-1]);
+      sorted = System.nanoTime();
+    }
+    double[][] predictions = new double[kernel.length][k.length];
+    sweep.evaluate(k, kernel, predictions);
+    queryStats.record(start, searched - start, sorted - searched, System.nanoTime() - sorted, numDistances);
+    score(testExample.getClassLabel(), predictions);
+    return predictions;
+  }
+
+  /**
+   * Test the example at the specified row of a set on the indexed training set
+   * The example of id excludeId is left out (-1 to consider all of them)
+  **/
+  private double[][] testSingle (kNNMatrix set, int row, int targetLabel, int excludeId)
+  {
+    double[] features = new double[featureWeights.length];
+    set.getRow(row, features);
+    double[][] predictions = new double[kernel.length][k.length];
+    predict(features, k, kernel, excludeId, predictions);
+    score(targetLabel, predictions);
+    return predictions;
+  }
+
+  /**
+   * Search the neighbors of the rows from to to (excluded) of a set all at once
+   * into heaps, leaving out of the search of row r the example of id excludeIds[r]
+   * (excludeIds may be null to consider all of them), and the number of distances
+   * computed for row r into numDistances[r - from]
+   * Returns the search time of each row in nanoseconds (the time of the block shared among its rows).
+  **/
+  private long searchBlock(kNNMatrix set, int from, int to, int[] excludeIds, kNNHeap[] heaps, int[] numDistances)
+  {
+    long start = System.nanoTime();
+    int capacity = Math.min(k[k.length-1], trainSetSize);
+    for (int r=0; r < to - from; r++)
+    {
+      if (heaps[r] == null || heaps[r].capacity() != capacity)
+        heaps[r] = new kNNHeap(capacity);
+      heaps[r].clear();
     }
+    trainBatch.search(set, from, to, excludeIds, heaps, numDistances);
+    return (System.nanoTime() - start)/(to - from);
+  }
+
+  /**
+   * Test an example of the specified label with the neighbors held by the heap
+   * which took searchTime nanoseconds and numDistances distances to find
+  **/
+  private double[][] testNeighbors(kNNHeap heap, int targetLabel, long searchTime, int numDistances)
+  {
+    long sortStart = System.nanoTime();
+    heap.sort();
+    long sorted = System.nanoTime();
+    kNNSweep sweep = getSweep();
+    sweep.load(heap, trainLabels, true);
+    double[][] predictions = new double[kernel.length][k.length];
+    sweep.evaluate(k, kernel, predictions);
+    queryStats.record(sortStart - searchTime, searchTime, sorted - sortStart, System.nanoTime() - sorted, numDistances);
+    score(targetLabel, predictions);
+    return predictions;
+  }
 
-    // Update the squared error and the number of correctly classified examples
-    // for each kernel width and each number of nearest neighbors considered
-    int targetLabel = testExample.getClassLabel();
-    kNNExample neighbor;     // neighbor considered
-    double neighborWeight;   // its weight
-    double neighborValue;    // its value (ie class label)
-    double sumWeightedValue; // weighted sum of each neighbor so far
-    double sumAllWeight;     // sum of the weights of each neighbor so far
-    double probaLabel;
-    double[][] predictions=new double[kernel.length][k.length];
-    int kIndex;              // indexes k[] array
-    // for each kernel width from kernel[]
+  /**
+   * Update the squared error and the number of correctly classified examples
+   * with the predictions made for an example of the specified label
+  **/
+  private void score(int targetLabel, double[][] predictions)
+  {
     for (int kernelIndex=0; kernelIndex < kernel.length; kernelIndex++)
     {
-      sumWeightedValue = 0;
-      sumAllWeight = 0;
-      kIndex = 0;
-      // for each neighbor from 0 to max k[]
-      for (int neighborNo=0; neighborNo < k[k.length-1]; neighborNo++)
+      for (int kIndex=0; kIndex < k.length; kIndex++)
       {
-        // compute the probability of each neighbor
-        neighbor = trainSet[neighborNo];
-        neighbor.setWeight(kernel[kernelIndex]);
-        neighborWeight = neighbor.getWeight();
-        neighborValue = neighbor.getClassLabel();
-        sumWeightedValue = sumWeightedValue + neighborValue * neighborWeight;
-        sumAllWeight = sumAllWeight + neighborWeight;
-        probaLabel = sumWeightedValue / sumAllWeight;
-        // update results after having seen k[kIndex] - 1 neighbors
-        if (neighborNo == k[kIndex]-1)
+        if (Math.abs(targetLabel - predictions[kernelIndex][kIndex]) <= 0.5)
         {
-          if (Math.abs(targetLabel - probaLabel) <= 0.5)
-          {
-            (numCorrect[kernelIndex][kIndex])++;
-          }
-          squaredError[kernelIndex][kIndex] = squaredError[kernelIndex][kIndex] + Math.pow(targetLabel - probaLabel,2);
-          predictions[kernelIndex][kIndex] = probaLabel;
-          kIndex++;
+          (numCorrect[kernelIndex][kIndex])++;
         }
+        squaredError[kernelIndex][kIndex] = squaredError[kernelIndex][kIndex] + Math.pow(targetLabel - predictions[kernelIndex][kIndex],2);
       }
     }
+  }
+
+  /**
+   * Predict the label of the features for each kernel width of kernel[]
+   * and each number of nearest neighbors of k[] (assumed sorted, between 1
+   * and the size of the training set). When an approximate search finds fewer
+   * neighbors than some k, the prediction for that k uses all those found.
+   * Neither the train set nor this kNN are modified, so several threads
+   * may call this method at once.
+  **/
+  public double[][] predict(double[] features, int[] k, int[] kernel)
+  {
+    checkNeighbors(k);
+    double[][] predictions = new double[kernel.length][k.length];
+    predict(features, k, kernel, -1, predictions);
     return predictions;
   }
 
+  /**
+   * Same as above but writes into predictions[kernel.length][k.length]
+   * The neighbors are kept in buffers reused by the calling thread so no allocation is made.
+  **/
+  public void predict(double[] features, int[] k, int[] kernel, double[][] predictions)
+  {
+    checkNeighbors(k);
+    predict(features, k, kernel, -1, predictions);
+  }
+
+  /**
+   * Predict the labels of the rows from to to (excluded) of queries into
+   * predictions[r - from][kernel.length][k.length] for each row r.
+   * The rows are searched all at once with the kNNBatch if setBatch(true) was
+   * called (see isBatch) and one at a time otherwise. Several threads may call
+   * this method at once.
+  **/
+  public void predict(kNNMatrix queries, int from, int to, int[] k, int[] kernel, double[][][] predictions)
+  {
+    checkNeighbors(k);
+    if (trainBatch == null || trainSearch != exactSearch || !metric.isSquared())
+    {
+      double[] features = new double[featureWeights.length];
+      for (int r=from; r < to; r++)
+      {
+        queries.getRow(r, features);
+        predict(features, k, kernel, -1, predictions[r - from]);
+      }
+      return;
+    }
+    long start = System.nanoTime();
+    kNNHeap[] heaps = new kNNHeap[to - from];
+    for (int r=0; r < to - from; r++)
+      heaps[r] = new kNNHeap(Math.min(k[k.length-1], trainSetSize));
+    int[] numDistances = new int[to - from];
+    trainBatch.search(queries, from, to, null, heaps, numDistances);
+    long searchTime = (System.nanoTime() - start)/Math.max(1, to - from);
+    kNNSweep sweep = getSweep();
+    long sortStart, sorted;
+    for (int r=0; r < to - from; r++)
+    {
+      sortStart = System.nanoTime();
+      heaps[r].sort();
+      sorted = System.nanoTime();
+      sweep.load(heaps[r], trainLabels, true);
+      sweep.evaluate(k, kernel, predictions[r]);
+      queryStats.record(sortStart - searchTime, searchTime, sorted - sortStart, System.nanoTime() - sorted, numDistances[r]);
+    }
+  }
+
+  /**
+   * Predict the label of the features leaving out the example of id excludeId
+  **/
+  private void predict(double[] features, int[] k, int[] kernel, int excludeId, double[][] predictions)
+  {
+    // Find the nearest neighbors in the heap of this thread
+    kNNSweep sweep = getSweep();
+    kNNHeap heap = sweep.getHeap(Math.min(k[k.length-1], trainSetSize));
+    long start = System.nanoTime();
+    int numDistances = trainSearch.search(features, heap, excludeId);
+    long searched = System.nanoTime();
+    heap.sort();
+    long sorted = System.nanoTime();
+
+    // Weigh the neighbors for each kernel width and each number of nearest neighbors
+    sweep.load(heap, trainLabels, metric.isSquared());
+    sweep.evaluate(k, kernel, predictions);
+    queryStats.record(start, searched - start, sorted - searched, System.nanoTime() - sorted, numDistances);
+  }
+
+  /**
+   * Return the sweep buffers of the calling thread
+  **/
+  private kNNSweep getSweep()
+  {
+    kNNSweep sweep = (kNNSweep) scratch.get();
+    if (sweep == null)
+    {
+      sweep = new kNNSweep();
+      scratch.set(sweep);
+    }
+    return sweep;
+  }
+
   /**
    * Returns as first coordinate the best kernel.
    * Returns as second coordinate the best number of nearest neighbors.
@@ -226,28 +599,20 @@ public class kNN
   **/
   private void scaleFeatureWeights(int mode)
   {
-    double max, min, var, sum, sumSquared;
-    int numAttributeVal = dataFile.getAttributeNum();
-    double[] attributeVal = new double[trainSetSize];
+    double max, min, var;
+    int numAttributeVal = trainMatrix.numColumns();
     double[] featureWeights = new double[numAttributeVal];
     double[] featureWeights1 = new double[numAttributeVal];
     double[] featureWeights2 = new double[numAttributeVal];
 
     // Find max min and variance of each attribute value
+    // in a single pass over the rows of the train set
+    trainStats = kNNFeatureStats.compute(trainMatrix, Runtime.getRuntime().availableProcessors());
     for (int i=0; i < numAttributeVal; i++)
     {
-      sum = 0;
-      sumSquared = 0;
-      for (int j=0; j < trainSetSize; j++)
-      {
-        attributeVal[j] = dataFile.getAttribute(j,i);
-        sum = sum + attributeVal[j];
-        sumSquared = sumSquared + Math.pow(attributeVal[j],2);
-      }
-      Arrays.sort(attributeVal);
-      max = attributeVal[trainSetSize-1];
-      min = attributeVal[0];
-      var = sumSquared/trainSetSize - Math.pow(sum/trainSetSize,2);
+      max = trainStats.getMax(i);
+      min = trainStats.getMin(i);
+      var = trainStats.getVariance(i);
       featureWeights[i] = 1;
       if (max - min == 0)
         featureWeights1[i] = 1;
@@ -259,15 +624,15 @@ public class kNN
         featureWeights2[i] = 1/var;
     }
 
-    // Default feature weights to 1
-    if (mode == 0)
-      kNNExample.setFeatureWeights(featureWeights);
+    // Default feature weights to 1 (mode 0)
     // 1/(max-min)
-    else if (mode == 1)
-      kNNExample.setFeatureWeights(featureWeights1);
+    if (mode == 1)
+      featureWeights = featureWeights1;
     // 1/var
     else if (mode == 2)
-      kNNExample.setFeatureWeights(featureWeights2);
+      featureWeights = featureWeights2;
+    this.featureWeights = featureWeights;
+    kNNExample.setFeatureWeights(featureWeights);
   }
 
   /**
@@ -369,6 +734,166 @@ public class kNN
     //System.out.println("Other k =  " + k[kIndex] + " , Accuracy =  " + accuracy1 + "% , RMSE =  " + RMSE1);
   }
 
+  /**
+   * Answer the queries approximately with an HNSW graph over the training set
+   * m is the number of links of each example, efConstruction and efSearch the
+   * number of examples explored when building the graph and when searching it.
+   * Predictions are still weighted over k[] and kernel[] as in the exact search.
+   * The graph is built under the weighted Euclidean distance which becomes the metric.
+  **/
+  public void setApproximate(int m, int efConstruction, int efSearch)
+  {
+    setMetric(kNNMetric.EUCLIDEAN);
+    trainSearch = new kNNHNSW(trainMatrix, trainIds, featureWeights, m, efConstruction, efSearch, 1);
+  }
+
+  /**
+   * Answer the queries with a scan over the training set quantized to one byte
+   * per feature between the min and max of each feature, ranking again the rerank*k
+   * best candidates under the exact distance.
+   * The quantized scan is under the weighted Euclidean distance which becomes the metric.
+   * The training set is quantized once: the codes are kept for later calls,
+   * saved into snapshots and loaded from them.
+   * The codes are added to the features in double precision, which the
+   * candidates are ranked again with; call dropExamples to then let go of the
+   * examples, the test set and the data set.
+  **/
+  public void setQuantized(int rerank)
+  {
+    setMetric(kNNMetric.EUCLIDEAN);
+    if (trainCodes == null)
+    {
+      // a kNN loaded from a snapshot has not computed its statistics
+      if (trainStats == null)
+        trainStats = kNNFeatureStats.compute(trainMatrix, Runtime.getRuntime().availableProcessors());
+      trainCodes = new kNNQuantizedMatrix(trainMatrix, trainStats);
+    }
+    trainSearch = new kNNQuantizedSearch(trainMatrix, trainCodes, trainIds, featureWeights, rerank);
+  }
+
+  /**
+   * Let go of the data set, the examples of the training and test sets and
+   * the features of the test set, keeping only what predict needs: the
+   * features of the training set row after row, their ids and labels and
+   * the searches over them. Meant for a kNN which only predicts, such as a
+   * quantized one, once the caller holds no other reference to the data set.
+   * train and test can no longer be called.
+  **/
+  public void dropExamples()
+  {
+    dataFile = null;
+    trainSet = null;
+    testSet = null;
+    testMatrix = null;
+    testSetSize = 0;
+    predictions = null;
+  }
+
+  /**
+   * Throw an exception if the examples needed by train and test are not kept
+  **/
+  private void checkExamples()
+  {
+    if (trainSet == null)
+      throw new IllegalStateException("This kNN only predicts: its examples are not kept");
+  }
+
+  /**
+   * Throw an exception unless every number of neighbors of k[] (assumed sorted)
+   * is between 1 and the size of the training set
+  **/
+  private void checkNeighbors(int[] k)
+  {
+    if (k.length == 0 || k[0] < 1 || k[k.length-1] > trainSetSize)
+      throw new IllegalArgumentException("The numbers of neighbors must be between 1 and the training set size (" + trainSetSize + ")");
+  }
+
+  /**
+   * Let train and test search the neighbors of a block of examples at once
+   * with a kNNBatch, comparing blocks of examples by dot products.
+   * It pays off when there are many features and the index cannot prune much;
+   * with few features or clustered examples the index is faster.
+   * Only used by the exact search under the Euclidean distance.
+  **/
+  public void setBatch(boolean batch)
+  {
+    if (!batch)
+      trainBatch = null;
+    else if (trainBatch == null)
+      trainBatch = new kNNBatch(trainMatrix, trainIds, featureWeights);
+  }
+
+  /**
+   * Return true if the neighbors are searched a block of examples at a time
+  **/
+  private boolean isBatch()
+  {
+    return (trainBatch != null && trainSearch == exactSearch && metric.isSquared());
+  }
+
+  /**
+   * Return the latency statistics of the queries answered since the last call
+   * to train or test (or since this kNN was made)
+  **/
+  public kNNQueryStats getQueryStats()
+  {
+    return queryStats;
+  }
+
+  /**
+   * Answer the queries exactly (the default)
+  **/
+  public void setExact()
+  {
+    trainSearch = exactSearch;
+  }
+
+  /**
+   * Report the recall and the mean latency of the approximate search against the
+   * exact search for the numNeighbors nearest neighbors of each test example.
+   * Assumes setApproximate or setQuantized has been called before.
+  **/
+  public void reportApproximation(int numNeighbors)
+  {
+    if (trainSearch == trainIndex || testSetSize == 0)
+      return;
+    numNeighbors = Math.min(numNeighbors, trainSetSize);
+    double[] features = new double[featureWeights.length];
+    kNNHeap exact = new kNNHeap(numNeighbors);
+    kNNHeap approximate = new kNNHeap(numNeighbors);
+    boolean[] isNeighbor = new boolean[trainSetSize];
+    long exactTime = 0;
+    long approximateTime = 0;
+    long time;
+    int found = 0;
+    for (int i=0; i < testSetSize; i++)
+    {
+      testMatrix.getRow(i, features);
+      exact.clear();
+      time = System.nanoTime();
+      trainIndex.search(features, exact, -1);
+      exactTime = exactTime + System.nanoTime() - time;
+      approximate.clear();
+      time = System.nanoTime();
+      trainSearch.search(features, approximate, -1);
+      approximateTime = approximateTime + System.nanoTime() - time;
+
+      // count the exact neighbors found by the approximate search
+      for (int j=0; j < exact.size(); j++)
+        isNeighbor[exact.getIndex(j)] = true;
+      for (int j=0; j < approximate.size(); j++)
+      {
+        if (isNeighbor[approximate.getIndex(j)])
+          found++;
+      }
+      for (int j=0; j < exact.size(); j++)
+        isNeighbor[exact.getIndex(j)] = false;
+    }
+    System.out.println("Approximate search of " + numNeighbors + " neighbors over " + testSetSize + " queries");
+    System.out.println("Recall =  " + 100.0 * found/(numNeighbors * testSetSize) + "%");
+    System.out.println("Exact latency =  " + exactTime/1000.0/testSetSize + " us , Approximate latency =  " + approximateTime/1000.0/testSetSize + " us");
+  }
+
   public void prettyPrintParameters()
   {
   }
@@ -0,0 +1,107 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A ball tree over the training set of the kNN algorithm.
+ * Each node keeps the smallest ball centered at the mean of its examples
+ * which contains all of them.
+ * Unlike boxes, balls stay tight when examples have many features.
+**/
+public class kNNBallTree extends kNNIndex
+{
+
+  private double[][] center;  // center of the ball of each node
+  private double[] radius;    // (weighted) radius of the ball of each node
+
+  /**
+   * Build a ball tree over the examples
+  **/
+  public kNNBallTree(kNNMatrix points, int[] ids, double[] featureWeights)
+  {
+    super(points, ids, featureWeights);
+    center = new double[start.length][];
+    radius = new double[start.length];
+    build();
+  }
+
+  /**
+   * Read a ball tree written by write()
+  **/
+  public kNNBallTree(kNNMatrix points, int[] ids, double[] featureWeights, ByteBuffer in)
+  {
+    super(points, ids, featureWeights);
+    center = new double[start.length][];
+    radius = new double[start.length];
+    read(in);
+  }
+
+  /**
+   * Write the center and the radius of each node
+  **/
+  protected void writeBounds(DataOutputStream out) throws IOException
+  {
+    for (int node=0; node < numNodes; node++)
+    {
+      for (int j=0; j < dimension; j++)
+        out.writeDouble(center[node][j]);
+      out.writeDouble(radius[node]);
+    }
+  }
+
+  /**
+   * Read the center and the radius of each node
+  **/
+  protected void readBounds(ByteBuffer in)
+  {
+    for (int node=0; node < numNodes; node++)
+    {
+      center[node] = new double[dimension];
+      for (int j=0; j < dimension; j++)
+        center[node][j] = in.getDouble();
+      radius[node] = in.getDouble();
+    }
+  }
+
+  /**
+   * Compute the center and the radius of the ball of the node
+  **/
+  protected void describeNode(int node)
+  {
+    int numExamples = end[node] - start[node];
+    double[] mean = new double[dimension];
+    for (int p=start[node]; p < end[node]; p++)
+    {
+      for (int j=0; j < dimension; j++)
+        mean[j] = mean[j] + points.get(perm[p], j);
+    }
+    for (int j=0; j < dimension; j++)
+      mean[j] = mean[j] / numExamples;
+
+    double max = 0;
+    double dist;
+    for (int p=start[node]; p < end[node]; p++)
+    {
+      dist = points.squaredDist(perm[p], mean, featureWeights);
+      if (dist > max)
+        max = dist;
+    }
+    center[node] = mean;
+    radius[node] = Math.sqrt(max);
+  }
+
+  /**
+   * Return the squared distance of q to the ball of the node
+   * (zero if q is inside the ball)
+  **/
+  protected double lowerBound(int node, double[] q)
+  {
+    double gap = Math.sqrt(distance(q, center[node])) - radius[node];
+    if (gap <= 0)
+      return 0;
+    return gap * gap;
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.util.*;
+import distance.*;
+
+/**
+ * Exact nearest neighbor search of many queries at once over the training set of kNN.
+ * The weighted squared distance is expanded as
+ *   sum_j w_j (a_j - b_j)^2 = ||a||^2 + ||b||^2 - 2 sum_j (w_j a_j) b_j
+ * where ||.|| is the weighted norm, so that a block of QUERY_BLOCK queries
+ * is compared to a block of TRAIN_BLOCK examples with dot products only.
+ * Both blocks stay in cache while they are compared, instead of streaming the
+ * whole training set once per query. The norms of the examples are computed once.
+ * The expansion is only a first cut: it loses precision when the points are
+ * far from each other compared to their norms, so the points are centered on
+ * the mean of the training set first, and every example whose expanded
+ * distance is within a bound on its rounding error of the k-th smallest one
+ * is kept as a candidate. The candidates are then ranked exactly by a kNNHeap
+ * under the distance of the index, so the neighbors found, ties included, are
+ * the ones the index finds.
+**/
+public class kNNBatch
+{
+
+  public static final int QUERY_BLOCK = 64;     // number of queries compared at once
+  public static final int TRAIN_BLOCK = 256;    // number of examples compared at once
+
+  private kNNMatrix points;           // the features of each example
+  private int[] ids;                  // the id of each example
+  private double[] featureWeights;    // the weights of the distance
+  private double[] mean;              // the mean of each feature over the examples
+  private double[] norms;             // the weighted squared norm of each centered example
+  private double maxNorm;             // the largest of norms
+  private int size;                   // number of examples
+  private int dimension;              // number of features of each example
+
+  private static final DistanceKernel kernel = DistanceKernel.getInstance();
+
+  /**
+   * Compute the mean of the examples and the norms of the centered examples
+  **/
+  public kNNBatch(kNNMatrix points, int[] ids, double[] featureWeights)
+  {
+    this.points = points;
+    this.ids = ids;
+    this.featureWeights = featureWeights;
+    this.size = points.numRows();
+    this.dimension = points.numColumns();
+    this.mean = new double[dimension];
+    this.norms = new double[size];
+    for (int i=0; i < size; i++)
+    {
+      for (int j=0; j < dimension; j++)
+        mean[j] = mean[j] + points.get(i, j);
+    }
+    for (int j=0; j < dimension; j++)
+      mean[j] = (size == 0 ? 0 : mean[j]/size);
+    double value;
+    for (int i=0; i < size; i++)
+    {
+      for (int j=0; j < dimension; j++)
+      {
+        value = points.get(i, j) - mean[j];
+        norms[i] = norms[i] + featureWeights[j] * value * value;
+      }
+      maxNorm = Math.max(maxNorm, norms[i]);
+    }
+  }
+
+  /**
+   * Offer to heaps[r - from] the nearest examples to the query of row r of queries
+   * for r from from to to (excluded), at their exact squared distance.
+   * The example of id queryIds[r] is left out of the search of row r
+   * (queryIds may be null to keep all the examples).
+   * The number of distances computed for row r, expanded and exact, is written
+   * into numDistances[r - from] (numDistances may be null).
+  **/
+  public void search(kNNMatrix queries, int from, int to, int[] queryIds, kNNHeap[] heaps, int[] numDistances)
+  {
+    double[] queryBlock = new double[QUERY_BLOCK * dimension];
+    double[] queryNorms = new double[QUERY_BLOCK];
+    double[] slack = new double[QUERY_BLOCK];
+    double[] trainBlock = new double[TRAIN_BLOCK * dimension];
+    double[] q = new double[dimension];
+    double[] dots = new double[4];
+    Candidates[] candidates = new Candidates[QUERY_BLOCK];
+    for (int r=0; r < QUERY_BLOCK; r++)
+      candidates[r] = new Candidates();
+    int numQueries, numExamples, excludeId, i;
+    double dist;
+    for (int queryFrom=from; queryFrom < to; queryFrom=queryFrom+QUERY_BLOCK)
+    {
+      // center and weigh the queries once so that a distance needs one dot product
+      numQueries = Math.min(QUERY_BLOCK, to - queryFrom);
+      queries.getRows(queryFrom, queryFrom + numQueries, queryBlock);
+      for (int r=0; r < numQueries; r++)
+      {
+        queryNorms[r] = 0;
+        for (int j=0; j < dimension; j++)
+        {
+          queryBlock[r * dimension + j] = queryBlock[r * dimension + j] - mean[j];
+          queryNorms[r] = queryNorms[r] + featureWeights[j] * queryBlock[r * dimension + j] * queryBlock[r * dimension + j];
+          queryBlock[r * dimension + j] = featureWeights[j] * queryBlock[r * dimension + j];
+        }
+        // the norms and the dot product are sums of dimension rounded products, and
+        // |dot| <= (queryNorm + norm)/2, so the expansion is off by less than this
+        slack[r] = 4 * (dimension + 4) * 0x1p-52 * (queryNorms[r] + maxNorm);
+        candidates[r].clear(heaps[queryFrom - from + r].capacity());
+      }
+
+      for (int trainFrom=0; trainFrom < size; trainFrom=trainFrom+TRAIN_BLOCK)
+      {
+        numExamples = Math.min(TRAIN_BLOCK, size - trainFrom);
+        points.getRows(trainFrom, trainFrom + numExamples, trainBlock);
+        for (int p=0; p < numExamples * dimension; p++)
+          trainBlock[p] = trainBlock[p] - mean[p % dimension];
+        for (int r=0; r < numQueries; r++)
+        {
+          excludeId = (queryIds == null ? -1 : queryIds[queryFrom + r]);
+          // four examples at a time so that each feature of the query is loaded once for them
+          int t = 0;
+          for (; t + 4 <= numExamples; t=t+4)
+          {
+            dot4(queryBlock, r * dimension, trainBlock, t * dimension, dots);
+            for (int u=0; u < 4; u++)
+            {
+              i = trainFrom + t + u;
+              if (ids[i] != excludeId)
+                candidates[r].offer(queryNorms[r] + norms[i] - 2 * dots[u], i, slack[r]);
+            }
+          }
+          for (; t < numExamples; t++)
+          {
+            i = trainFrom + t;
+            if (ids[i] == excludeId)
+              continue;
+            dist = queryNorms[r] + norms[i] - 2 * kernel.dot(queryBlock, r * dimension, trainBlock, t * dimension, dimension);
+            candidates[r].offer(dist, i, slack[r]);
+          }
+        }
+      }
+
+      // rank the candidates exactly
+      for (int r=0; r < numQueries; r++)
+      {
+        kNNHeap heap = heaps[queryFrom - from + r];
+        Candidates kept = candidates[r];
+        queries.getRow(queryFrom + r, q);
+        double threshold = kept.heap.worst() + 2 * slack[r];
+        int numExact = 0;
+        for (int c=0; c < kept.size; c++)
+        {
+          if (kept.dist[c] <= threshold)
+          {
+            heap.offer(points.squaredDist(kept.index[c], q, featureWeights), kept.index[c]);
+            numExact++;
+          }
+        }
+        if (numDistances != null)
+          numDistances[queryFrom - from + r] = kept.numOffers + numExact;
+      }
+    }
+  }
+
+  /**
+   * Write into dots the dot products of the query at offset q of queries with the four
+   * consecutive examples starting at offset b of examples
+  **/
+  private void dot4(double[] queries, int q, double[] examples, int b, double[] dots)
+  {
+    double sum0 = 0;
+    double sum1 = 0;
+    double sum2 = 0;
+    double sum3 = 0;
+    double value;
+    for (int j=0; j < dimension; j++)
+    {
+      value = queries[q + j];
+      sum0 = sum0 + value * examples[b + j];
+      sum1 = sum1 + value * examples[b + dimension + j];
+      sum2 = sum2 + value * examples[b + 2*dimension + j];
+      sum3 = sum3 + value * examples[b + 3*dimension + j];
+    }
+    dots[0] = sum0;
+    dots[1] = sum1;
+    dots[2] = sum2;
+    dots[3] = sum3;
+  }
+
+  /**
+   * The candidates of a query: the examples whose expanded distance was within
+   * twice the slack of the k-th smallest one seen so far when they were offered.
+   * The k-th smallest only decreases, so this holds every example within twice
+   * the slack of the final one, which includes every exact neighbor.
+  **/
+  private static class Candidates
+  {
+    kNNHeap heap;               // the k smallest expanded distances so far
+    double[] dist = new double[16];   // the expanded distance of each candidate
+    int[] index = new int[16];        // the index of each candidate
+    int size;                   // number of candidates
+    int numOffers;              // number of examples offered
+
+    void clear(int capacity)
+    {
+      if (heap == null || heap.capacity() != capacity)
+        heap = new kNNHeap(capacity);
+      heap.clear();
+      size = 0;
+      numOffers = 0;
+    }
+
+    void offer(double d, int i, double slack)
+    {
+      numOffers++;
+      if (d > heap.worst() + 2 * slack)
+        return;
+      heap.offer(d, i);
+      if (size == dist.length)
+      {
+        dist = Arrays.copyOf(dist, 2 * size);
+        index = Arrays.copyOf(index, 2 * size);
+      }
+      dist[size] = d;
+      index[size] = i;
+      size++;
+    }
+  }
+}
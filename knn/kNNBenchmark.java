@@ -0,0 +1,110 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.util.*;
+
+/**
+ * Time the selection of the k nearest neighbors of a query
+ * by a full sort of the train set against the bounded heap of kNNHeap.
+ * Distances are drawn at random so that only the selection is timed.
+**/
+public class kNNBenchmark
+{
+
+  /**
+   * Return the indexes of the k smallest distances by sorting all of them
+  **/
+  private static int[] selectBySort(final double[] dist, int k)
+  {
+    Integer[] order = new Integer[dist.length];
+    for (int i=0; i < dist.length; i++)
+      order[i] = Integer.valueOf(i);
+    // same cost as sorting kNNExample objects with kNNComparator
+    Arrays.sort(order, new Comparator<Integer>()
+    {
+      public int compare(Integer o1, Integer o2)
+      {
+        double dist1 = dist[o1.intValue()];
+        double dist2 = dist[o2.intValue()];
+        if (dist1 < dist2)
+          return -1;
+        else if (dist1 == dist2)
+          return 0;
+        else
+          return 1;
+      }
+    });
+    int[] nearest = new int[k];
+    for (int i=0; i < k; i++)
+      nearest[i] = order[i].intValue();
+    return nearest;
+  }
+
+  /**
+   * Return the indexes of the k smallest distances using a bounded heap
+  **/
+  private static int[] selectByHeap(double[] dist, kNNHeap heap)
+  {
+    heap.clear();
+    for (int i=0; i < dist.length; i++)
+      heap.offer(dist[i], i);
+    heap.sort();
+    int[] nearest = new int[heap.size()];
+    for (int i=0; i < nearest.length; i++)
+      nearest[i] = heap.getIndex(i);
+    return nearest;
+  }
+
+  /**
+   * Start of this program.
+   * Defaults to k=20 neighbors out of a train set of 50000 examples.
+  **/
+  public static void main(String[] args)
+  {
+    int trainSetSize = 50000;
+    int k = 20;
+    int numQueries = 200;
+    if (args.length == 3)
+    {
+      trainSetSize = Integer.parseInt(args[0]);
+      k = Integer.parseInt(args[1]);
+      numQueries = Integer.parseInt(args[2]);
+    }
+    else if (args.length != 0)
+    {
+      System.out.println("Wrong usage. Type java kNNBenchmark [training set size] [k] [number of queries]");
+      return;
+    }
+
+    Random random = new Random(1);
+    double[][] dist = new double[numQueries][trainSetSize];
+    for (int q=0; q < numQueries; q++)
+      for (int i=0; i < trainSetSize; i++)
+        dist[q][i] = random.nextDouble();
+    kNNHeap heap = new kNNHeap(k);
+
+    // warm up both methods and check they agree
+    for (int q=0; q < numQueries; q++)
+    {
+      if (!Arrays.equals(selectBySort(dist[q], k), selectByHeap(dist[q], heap)))
+        System.out.println("Selections differ on query " + q);
+    }
+
+    long checksum = 0;
+    long time = System.nanoTime();
+    for (int q=0; q < numQueries; q++)
+      checksum = checksum + selectBySort(dist[q], k)[k-1];
+    double sortTime = (System.nanoTime() - time) / 1e6 / numQueries;
+
+    time = System.nanoTime();
+    for (int q=0; q < numQueries; q++)
+      checksum = checksum - selectByHeap(dist[q], heap)[k-1];
+    double heapTime = (System.nanoTime() - time) / 1e6 / numQueries;
+
+    System.out.println("Train set size =  " + trainSetSize + " , k =  " + k + " , queries =  " + numQueries);
+    System.out.println("Full sort     : " + sortTime + " ms/query");
+    System.out.println("Bounded heap  : " + heapTime + " ms/query");
+    System.out.println("Speedup       : " + sortTime/heapTime + "x" + (checksum == 0 ? "" : " (results differ)"));
+  }
+}
@@ -42,13 +42,24 @@ public class kNNExample extends Example
   public void setRelativeDist(Example example)
   {
     double sum=0;
+    double diff;
     for (int i=0; i < attributes.length; i++)
     {
-      sum = sum + featureWeights[i] * (Math.pow(getAttribute(i) - example.getAttribute(i), 2));
+      diff = attributes[i] - example.getAttribute(i);
+      sum = sum + featureWeights[i] * (diff * diff);
     }
     this.relativeDistance = Math.sqrt(sum);
   }
 
+  /**
+   * Compute the distance relative to a kNN example under the specified metric
+   * (each kNN passes its own)
+  */
+  public void setRelativeDist(kNNExample example, kNNMetric metric)
+  {
+    this.relativeDistance = metric.toDistance(metric.distance(attributes, example.attributes));
+  }
+
   /**
    * Two kNN examples are equal if they have the same ids
   */
@@ -93,6 +104,14 @@ public class kNNExample extends Example
       kNNExample.featureWeights[i] = featureWeights[i];
   }
 
+  /**
+   * Return the feature weights used to compute the weighted distance
+  */
+  public static double[] getFeatureWeights()
+  {
+    return featureWeights;
+  }
+
   /**
    * Default feature weights to one
   */
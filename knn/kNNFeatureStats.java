@@ -0,0 +1,199 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Minimum, maximum, mean and variance of every feature of a set of examples
+ * gathered in a single pass over the rows (Welford's method).
+ * Two accumulators over disjoint rows can be merged, so the rows may be split
+ * into chunks gathered in parallel.
+**/
+public class kNNFeatureStats
+{
+
+  public static final int CHUNK_SIZE = 65536;   // number of rows of each chunk
+
+  private int count;          // number of rows seen
+  private double[] min;       // minimum of each feature
+  private double[] max;       // maximum of each feature
+  private double[] mean;      // mean of each feature
+  private double[] m2;        // sum of squared deviations from the mean of each feature
+
+  /**
+   * Create an empty accumulator
+  **/
+  public kNNFeatureStats(int numFeatures)
+  {
+    min = new double[numFeatures];
+    max = new double[numFeatures];
+    mean = new double[numFeatures];
+    m2 = new double[numFeatures];
+  }
+
+  /**
+   * Add the row of the matrix
+  **/
+  public void add(kNNMatrix matrix, int row)
+  {
+    count++;
+    double value, delta;
+    for (int j=0; j < mean.length; j++)
+    {
+      value = matrix.get(row, j);
+      if (count == 1 || value < min[j])
+        min[j] = value;
+      if (count == 1 || value > max[j])
+        max[j] = value;
+      delta = value - mean[j];
+      mean[j] = mean[j] + delta/count;
+      m2[j] = m2[j] + delta * (value - mean[j]);
+    }
+  }
+
+  /**
+   * Add the rows seen by another accumulator
+  **/
+  public void merge(kNNFeatureStats other)
+  {
+    if (other.count == 0)
+      return;
+    if (count == 0)
+    {
+      count = other.count;
+      System.arraycopy(other.min, 0, min, 0, min.length);
+      System.arraycopy(other.max, 0, max, 0, max.length);
+      System.arraycopy(other.mean, 0, mean, 0, mean.length);
+      System.arraycopy(other.m2, 0, m2, 0, m2.length);
+      return;
+    }
+    double total = count + other.count;
+    double delta;
+    for (int j=0; j < mean.length; j++)
+    {
+      min[j] = Math.min(min[j], other.min[j]);
+      max[j] = Math.max(max[j], other.max[j]);
+      delta = other.mean[j] - mean[j];
+      mean[j] = mean[j] + delta * other.count/total;
+      m2[j] = m2[j] + other.m2[j] + delta * delta * count * other.count/total;
+    }
+    count = count + other.count;
+  }
+
+  /**
+   * Return the statistics of the rows from index from to to (excluded) of the matrix
+  **/
+  public static kNNFeatureStats compute(kNNMatrix matrix, int from, int to)
+  {
+    kNNFeatureStats stats = new kNNFeatureStats(matrix.numColumns());
+    for (int i=from; i < to; i++)
+      stats.add(matrix, i);
+    return stats;
+  }
+
+  /**
+   * Return the statistics of all the rows of the matrix
+   * The rows are split into chunks of CHUNK_SIZE gathered by numThreads threads
+   * and merged in order, so the result does not depend on the number of threads.
+  **/
+  public static kNNFeatureStats compute(final kNNMatrix matrix, int numThreads)
+  {
+    int numRows = matrix.numRows();
+    int numChunks = (numRows + CHUNK_SIZE - 1)/CHUNK_SIZE;
+    if (numThreads <= 1 || numChunks <= 1)
+    {
+      kNNFeatureStats stats = new kNNFeatureStats(matrix.numColumns());
+      for (int from=0; from < numRows; from=from+CHUNK_SIZE)
+        stats.merge(compute(matrix, from, Math.min(from + CHUNK_SIZE, numRows)));
+      return stats;
+    }
+
+    List chunks = new ArrayList();
+    for (int from=0; from < numRows; from=from+CHUNK_SIZE)
+    {
+      final int start = from;
+      final int end = Math.min(from + CHUNK_SIZE, numRows);
+      chunks.add(new Callable()
+      {
+        public Object call()
+        {
+          return compute(matrix, start, end);
+        }
+      });
+    }
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try
+    {
+      List results = pool.invokeAll(chunks);
+      kNNFeatureStats stats = new kNNFeatureStats(matrix.numColumns());
+      for (int c=0; c < results.size(); c++)
+        stats.merge((kNNFeatureStats) ((Future) results.get(c)).get());
+      return stats;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Return the number of rows seen
+  **/
+  public int getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Return the minimum of feature j
+  **/
+  public double getMin(int j)
+  {
+    return min[j];
+  }
+
+  /**
+   * Return the maximum of feature j
+  **/
+  public double getMax(int j)
+  {
+    return max[j];
+  }
+
+  /**
+   * Return the mean of feature j
+  **/
+  public double getMean(int j)
+  {
+    return mean[j];
+  }
+
+  /**
+   * Return the (population) variance of feature j
+  **/
+  public double getVariance(int j)
+  {
+    if (count == 0)
+      return 0;
+    return m2[j]/count;
+  }
+
+  /**
+   * Return the number of features
+  **/
+  public int getNumFeatures()
+  {
+    return mean.length;
+  }
+}
@@ -0,0 +1,416 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.util.*;
+
+/**
+ * Approximate nearest neighbor search over the training set of kNN using a
+ * hierarchical navigable small world (HNSW) graph.
+ * Each example is linked to its closest examples on level 0 and, with an
+ * exponentially decreasing probability, on higher levels too. A query greedily
+ * walks down the levels from a fixed entry point and then explores level 0
+ * keeping the efSearch best examples found.
+ * Larger efConstruction gives a better graph, larger efSearch a better recall,
+ * both at the cost of time.
+**/
+public class kNNHNSW implements kNNSearch
+{
+
+  private kNNMatrix points;         // the features of each example
+  private int[] ids;                // the id of each example
+  private double[] featureWeights;  // the weights of the distance
+  private int size;                 // number of examples
+  private int dimension;            // number of features of each example
+  private int m;                    // number of links of each example (2m on level 0)
+  private int efConstruction;       // number of examples explored when linking an example
+  private int efSearch;             // number of examples explored when searching
+  private int[][][] links;          // links[i][l] holds the examples linked to example i on level l
+  private int[][] numLinks;         // numLinks[i][l] is the number of links of example i on level l
+  private int entryPoint;           // example the searches start from
+  private int maxLevel;             // highest level of the graph
+  private ThreadLocal scratch;      // search buffers of each thread
+
+  /**
+   * Build the graph by inserting the examples one after the other.
+   * The levels of the examples are drawn from the seed.
+  **/
+  public kNNHNSW(kNNMatrix points, int[] ids, double[] featureWeights, int m, int efConstruction, int efSearch, long seed)
+  {
+    this.points = points;
+    this.ids = ids;
+    this.featureWeights = featureWeights;
+    this.size = points.numRows();
+    this.dimension = points.numColumns();
+    this.m = m;
+    this.efConstruction = Math.max(efConstruction, m);
+    this.efSearch = efSearch;
+    this.links = new int[size][][];
+    this.numLinks = new int[size][];
+    this.scratch = new ThreadLocal();
+
+    Random random = new Random(seed);
+    double levelFactor = 1/Math.log(Math.max(m, 2));
+    Scratch buffers = getScratch();
+    double[] q = new double[dimension];
+    for (int i=0; i < size; i++)
+    {
+      int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+      points.getRow(i, q);
+      insert(i, level, q, buffers);
+    }
+  }
+
+  /**
+   * Set the number of examples explored when searching
+  **/
+  public void setEfSearch(int efSearch)
+  {
+    this.efSearch = efSearch;
+  }
+
+  /**
+   * Return the number of examples explored when searching
+  **/
+  public int getEfSearch()
+  {
+    return efSearch;
+  }
+
+  /**
+   * Offer to the heap the approximate nearest examples to the query q
+  **/
+  public int search(double[] q, kNNHeap heap, int excludeId)
+  {
+    if (size == 0)
+      return 0;
+    Scratch buffers = getScratch();
+    buffers.numDistances = 0;
+    int entry = entryPoint;
+    for (int l=maxLevel; l > 0; l--)
+      entry = greedy(q, entry, l, buffers);
+
+    // one more candidate in case the excluded example is among them
+    int ef = Math.max(efSearch, heap.capacity() + 1);
+    kNNHeap results = buffers.results(ef);
+    searchLevel(q, entry, 0, results, buffers);
+    int node;
+    for (int i=0; i < results.size(); i++)
+    {
+      node = results.getIndex(i);
+      if (ids[node] != excludeId)
+        heap.offer(results.getDist(i), node);
+    }
+    return buffers.numDistances;
+  }
+
+  /**
+   * Link example i to its nearest examples on each of its levels
+  **/
+  private void insert(int i, int level, double[] q, Scratch buffers)
+  {
+    links[i] = new int[level+1][];
+    numLinks[i] = new int[level+1];
+    for (int l=0; l <= level; l++)
+      links[i][l] = new int[maxLinks(l) + 1];
+    if (i == 0)
+    {
+      entryPoint = 0;
+      maxLevel = level;
+      return;
+    }
+
+    // walk down to the level of the new example
+    int entry = entryPoint;
+    for (int l=maxLevel; l > level; l--)
+      entry = greedy(q, entry, l, buffers);
+
+    kNNHeap results = buffers.results(efConstruction);
+    for (int l=Math.min(level, maxLevel); l >= 0; l--)
+    {
+      searchLevel(q, entry, l, results, buffers);
+      results.sort();
+      entry = results.getIndex(0);
+
+      // link the new example both ways
+      int numCandidates = results.size();
+      int[] candidates = new int[numCandidates];
+      double[] candidateDist = new double[numCandidates];
+      for (int c=0; c < numCandidates; c++)
+      {
+        candidates[c] = results.getIndex(c);
+        candidateDist[c] = results.getDist(c);
+      }
+      numLinks[i][l] = selectNeighbors(candidates, candidateDist, numCandidates, m, links[i][l]);
+      for (int c=0; c < numLinks[i][l]; c++)
+        link(links[i][l][c], i, l);
+    }
+    if (level > maxLevel)
+    {
+      entryPoint = i;
+      maxLevel = level;
+    }
+  }
+
+  /**
+   * Add a link from example node to example i on level l
+   * Drops the least useful link if node has too many links.
+  **/
+  private void link(int node, int i, int l)
+  {
+    int count = numLinks[node][l];
+    int[] nodeLinks = links[node][l];
+    nodeLinks[count] = i;
+    count++;
+    if (count <= maxLinks(l))
+    {
+      numLinks[node][l] = count;
+      return;
+    }
+    // sort the links of node by distance to it and select among them again
+    double[] q = new double[dimension];
+    points.getRow(node, q);
+    int[] candidates = new int[count];
+    double[] candidateDist = new double[count];
+    kNNHeap heap = new kNNHeap(count);
+    for (int c=0; c < count; c++)
+      heap.offer(points.squaredDist(nodeLinks[c], q, featureWeights), nodeLinks[c]);
+    heap.sort();
+    for (int c=0; c < count; c++)
+    {
+      candidates[c] = heap.getIndex(c);
+      candidateDist[c] = heap.getDist(c);
+    }
+    numLinks[node][l] = selectNeighbors(candidates, candidateDist, count, maxLinks(l), nodeLinks);
+  }
+
+  /**
+   * Select at most maxCount neighbors among the candidates sorted by ascending distance.
+   * A candidate is preferred if it is closer to the example than to any neighbor
+   * selected so far, so that the links point in various directions. The remaining
+   * places are filled with the closest candidates left.
+   * Returns the number of neighbors written into selected.
+  **/
+  private int selectNeighbors(int[] candidates, double[] candidateDist, int numCandidates, int maxCount, int[] selected)
+  {
+    int count = 0;
+    boolean[] taken = new boolean[numCandidates];
+    double[] q = new double[dimension];
+    for (int c=0; c < numCandidates && count < maxCount; c++)
+    {
+      points.getRow(candidates[c], q);
+      boolean diverse = true;
+      for (int s=0; s < count && diverse; s++)
+      {
+        if (points.squaredDist(selected[s], q, featureWeights) < candidateDist[c])
+          diverse = false;
+      }
+      if (diverse)
+      {
+        selected[count] = candidates[c];
+        taken[c] = true;
+        count++;
+      }
+    }
+    for (int c=0; c < numCandidates && count < maxCount; c++)
+    {
+      if (!taken[c])
+      {
+        selected[count] = candidates[c];
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Move greedily from example entry to the closest example to q on level l
+  **/
+  private int greedy(double[] q, int entry, int l, Scratch buffers)
+  {
+    double entryDist = points.squaredDist(entry, q, featureWeights);
+    buffers.numDistances++;
+    boolean moved = true;
+    int node;
+    double dist;
+    while (moved)
+    {
+      moved = false;
+      int[] nodeLinks = links[entry][l];
+      int count = numLinks[entry][l];
+      for (int c=0; c < count; c++)
+      {
+        node = nodeLinks[c];
+        dist = points.squaredDist(node, q, featureWeights);
+        buffers.numDistances++;
+        if (dist < entryDist)
+        {
+          entryDist = dist;
+          entry = node;
+          moved = true;
+        }
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Explore level l from example entry keeping the results.capacity() closest examples to q.
+   * results is cleared first and is left unsorted.
+  **/
+  private void searchLevel(double[] q, int entry, int l, kNNHeap results, Scratch buffers)
+  {
+    buffers.newVisit();
+    results.clear();
+    double dist = points.squaredDist(entry, q, featureWeights);
+    buffers.numDistances++;
+    buffers.visit(entry);
+    buffers.push(dist, entry);
+    results.offer(dist, entry);
+
+    int node;
+    while (buffers.numCandidates > 0)
+    {
+      // stop once the closest candidate is farther than all the results
+      if (buffers.candidateDist[0] > results.worst())
+        break;
+      int current = buffers.pop();
+      int[] nodeLinks = links[current][l];
+      int count = numLinks[current][l];
+      for (int c=0; c < count; c++)
+      {
+        node = nodeLinks[c];
+        if (buffers.isVisited(node))
+          continue;
+        buffers.visit(node);
+        dist = points.squaredDist(node, q, featureWeights);
+        buffers.numDistances++;
+        if (dist < results.worst())
+        {
+          buffers.push(dist, node);
+          results.offer(dist, node);
+        }
+      }
+    }
+    buffers.numCandidates = 0;
+  }
+
+  /**
+   * Return the maximum number of links on level l
+  **/
+  private int maxLinks(int l)
+  {
+    if (l == 0)
+      return 2*m;
+    return m;
+  }
+
+  /**
+   * Return the search buffers of the calling thread
+  **/
+  private Scratch getScratch()
+  {
+    Scratch buffers = (Scratch) scratch.get();
+    if (buffers == null)
+    {
+      buffers = new Scratch(size);
+      scratch.set(buffers);
+    }
+    return buffers;
+  }
+
+  /**
+   * Buffers of a search: a min-heap of the candidates to explore,
+   * marks of the visited examples and a heap of results.
+  **/
+  private static class Scratch
+  {
+    int[] visited;            // visit number at which each example was last visited
+    int visit;                // current visit number
+    double[] candidateDist;   // min-heap of the candidates by distance
+    int[] candidate;
+    int numCandidates;
+    kNNHeap results;
+    int numDistances;         // distances to q computed since the search started
+
+    Scratch(int size)
+    {
+      visited = new int[size];
+      candidateDist = new double[64];
+      candidate = new int[64];
+    }
+
+    kNNHeap results(int capacity)
+    {
+      if (results == null || results.capacity() != capacity)
+        results = new kNNHeap(capacity);
+      return results;
+    }
+
+    void newVisit()
+    {
+      visit++;
+      if (visit == Integer.MAX_VALUE)
+      {
+        Arrays.fill(visited, 0);
+        visit = 1;
+      }
+    }
+
+    boolean isVisited(int node)
+    {
+      return (visited[node] == visit);
+    }
+
+    void visit(int node)
+    {
+      visited[node] = visit;
+    }
+
+    void push(double dist, int node)
+    {
+      if (numCandidates == candidate.length)
+      {
+        candidateDist = Arrays.copyOf(candidateDist, 2*numCandidates);
+        candidate = Arrays.copyOf(candidate, 2*numCandidates);
+      }
+      int child = numCandidates;
+      numCandidates++;
+      while (child > 0)
+      {
+        int parent = (child-1)/2;
+        if (candidateDist[parent] <= dist)
+          break;
+        candidateDist[child] = candidateDist[parent];
+        candidate[child] = candidate[parent];
+        child = parent;
+      }
+      candidateDist[child] = dist;
+      candidate[child] = node;
+    }
+
+    int pop()
+    {
+      int top = candidate[0];
+      numCandidates--;
+      double dist = candidateDist[numCandidates];
+      int node = candidate[numCandidates];
+      int parent = 0;
+      int child = 1;
+      while (child < numCandidates)
+      {
+        if (child+1 < numCandidates && candidateDist[child+1] < candidateDist[child])
+          child++;
+        if (candidateDist[child] >= dist)
+          break;
+        candidateDist[parent] = candidateDist[child];
+        candidate[parent] = candidate[child];
+        parent = child;
+        child = 2*parent + 1;
+      }
+      candidateDist[parent] = dist;
+      candidate[parent] = node;
+      return top;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+/**
+ * A bounded max-heap keeping the closest examples seen so far.
+ * The farthest kept example sits at the root so that it can be replaced
+ * by a closer one in O(log k). Distances and indexes are held in two
+ * parallel primitive arrays.
+ * Ties in distance are broken by the smallest index.
+**/
+public class kNNHeap
+{
+
+  private double[] dist;      // the distance of each kept example
+  private int[] index;        // the index of each kept example
+  private int size;           // number of examples kept so far
+
+  /**
+   * Create a heap keeping at most capacity examples
+  **/
+  public kNNHeap(int capacity)
+  {
+    this.dist = new double[capacity];
+    this.index = new int[capacity];
+    this.size = 0;
+  }
+
+  /**
+   * Remove all the examples of this heap
+  **/
+  public void clear()
+  {
+    size = 0;
+  }
+
+  /**
+   * Offer an example at distance d and of index i.
+   * It is kept only if it is closer than the farthest example kept so far.
+  **/
+  public void offer(double d, int i)
+  {
+    if (size < dist.length)
+    {
+      // sift the new example up from the last leaf
+      int child = size;
+      size++;
+      while (child > 0)
+      {
+        int parent = (child-1)/2;
+        if (!greater(d, i, dist[parent], index[parent]))
+          break;
+        dist[child] = dist[parent];
+        index[child] = index[parent];
+        child = parent;
+      }
+      dist[child] = d;
+      index[child] = i;
+    }
+    else if (size > 0 && greater(dist[0], index[0], d, i))
+    {
+      // replace the farthest example
+      siftDown(d, i, size);
+    }
+  }
+
+  /**
+   * Return the distance of the farthest example kept
+   * or infinity if the heap is not full yet.
+  **/
+  public double worst()
+  {
+    if (size < dist.length)
+      return Double.POSITIVE_INFINITY;
+    return dist[0];
+  }
+
+  /**
+   * Sort the kept examples by ascending distance.
+   * The heap order is lost, clear() must be called before offering again.
+  **/
+  public void sort()
+  {
+    double d;
+    int i;
+    for (int last=size-1; last > 0; last--)
+    {
+      d = dist[last];
+      i = index[last];
+      dist[last] = dist[0];
+      index[last] = index[0];
+      siftDown(d, i, last);
+    }
+  }
+
+  /**
+   * Return the number of examples kept
+  **/
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Return the maximum number of examples kept
+  **/
+  public int capacity()
+  {
+    return dist.length;
+  }
+
+  /**
+   * Return the distance of the example at position i
+  **/
+  public double getDist(int i)
+  {
+    return dist[i];
+  }
+
+  /**
+   * Return the index of the example at position i
+  **/
+  public int getIndex(int i)
+  {
+    return index[i];
+  }
+
+  /**
+   * Put the example (d,i) at the root and sift it down within the first n positions
+  **/
+  private void siftDown(double d, int i, int n)
+  {
+    int parent = 0;
+    int child = 1;
+    while (child < n)
+    {
+      if (child+1 < n && greater(dist[child+1], index[child+1], dist[child], index[child]))
+        child++;
+      if (!greater(dist[child], index[child], d, i))
+        break;
+      dist[parent] = dist[child];
+      index[parent] = index[child];
+      parent = child;
+      child = 2*parent + 1;
+    }
+    dist[parent] = d;
+    index[parent] = i;
+  }
+
+  /**
+   * Order examples by distance then by index
+  **/
+  private static boolean greater(double d1, int i1, double d2, int i2)
+  {
+    return (d1 > d2 || (d1 == d2 && i1 > i2));
+  }
+}
@@ -0,0 +1,305 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.io.*;
+import java.nio.*;
+import distance.*;
+
+/**
+ * A spatial index over the training set of the kNN algorithm.
+ * The examples are recursively split in two halves along their widest
+ * (weighted) feature until at most LEAF_SIZE examples are left in a node.
+ * Each node keeps a bound on the examples it holds so that whole nodes can be
+ * skipped during the search.
+ * Answers exact nearest neighbor queries under the weighted distance of kNNExample.
+**/
+public abstract class kNNIndex implements kNNSearch
+{
+
+  public static final int LEAF_SIZE = 16;         // maximum number of examples in a leaf
+  public static final int MAX_KD_DIMENSION = 16;  // above this number of features use a ball tree
+  public static final int KD_TREE = 0;            // type of a KD-tree when saved
+  public static final int BALL_TREE = 1;          // type of a ball tree when saved
+
+  protected int[] ids;                // the id of each indexed example
+  protected kNNMatrix points;         // the features of each indexed example
+  protected double[] featureWeights;  // the weights of the distance
+  protected int size;                 // number of indexed examples
+  protected int dimension;            // number of features of each example
+  protected int[] perm;               // indexes of the examples grouped by node
+  protected int[] start;              // first position in perm of the examples of each node
+  protected int[] end;                // last position (excluded) in perm of each node
+  protected int[] left;               // left child of each node (-1 for a leaf)
+  protected int[] right;              // right child of each node (-1 for a leaf)
+  protected int numNodes;             // number of nodes of the tree
+
+  /**
+   * Keep the features and the ids of the examples and copy the feature weights
+   * The tree itself is built by the subclass through build()
+  **/
+  protected kNNIndex(kNNMatrix points, int[] ids, double[] featureWeights)
+  {
+    this.points = points;
+    this.ids = ids;
+    this.size = points.numRows();
+    this.dimension = featureWeights.length;
+    this.featureWeights = new double[dimension];
+    for (int j=0; j < dimension; j++)
+      this.featureWeights[j] = featureWeights[j];
+
+    this.perm = new int[size];
+    for (int i=0; i < size; i++)
+      perm[i] = i;
+
+    // each leaf holds more than LEAF_SIZE/2 examples
+    int maxNodes = 4*size/LEAF_SIZE + 1;
+    start = new int[maxNodes];
+    end = new int[maxNodes];
+    left = new int[maxNodes];
+    right = new int[maxNodes];
+  }
+
+  /**
+   * Build the index best suited to the number of features:
+   * a KD-tree for few features and a ball tree otherwise.
+  **/
+  public static kNNIndex build(kNNMatrix points, int[] ids, double[] featureWeights)
+  {
+    if (featureWeights.length <= MAX_KD_DIMENSION)
+      return new kNNKDTree(points, ids, featureWeights);
+    else
+      return new kNNBallTree(points, ids, featureWeights);
+  }
+
+  /**
+   * Offer to the heap the exact nearest examples to the query q
+  **/
+  public int search(double[] q, kNNHeap heap, int excludeId)
+  {
+    return search(0, q, heap, excludeId);
+  }
+
+  /**
+   * Write the type and the nodes of the tree
+   * The features, ids and weights are saved apart (see kNNSnapshot).
+  **/
+  public void write(DataOutputStream out) throws IOException
+  {
+    out.writeInt(this instanceof kNNKDTree ? KD_TREE : BALL_TREE);
+    out.writeInt(numNodes);
+    for (int p=0; p < size; p++)
+      out.writeInt(perm[p]);
+    for (int node=0; node < numNodes; node++)
+    {
+      out.writeInt(start[node]);
+      out.writeInt(end[node]);
+      out.writeInt(left[node]);
+      out.writeInt(right[node]);
+    }
+    writeBounds(out);
+  }
+
+  /**
+   * Read a tree written by write() over the specified examples
+  **/
+  public static kNNIndex read(ByteBuffer in, kNNMatrix points, int[] ids, double[] featureWeights)
+  {
+    int type = in.getInt();
+    if (type == KD_TREE)
+      return new kNNKDTree(points, ids, featureWeights, in);
+    else
+      return new kNNBallTree(points, ids, featureWeights, in);
+  }
+
+  /**
+   * Return the number of indexed examples
+  **/
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Compute the bound of the node from the examples it holds
+  **/
+  protected abstract void describeNode(int node);
+
+  /**
+   * Return a lower bound of the squared distance of q to any example of the node
+  **/
+  protected abstract double lowerBound(int node, double[] q);
+
+  /**
+   * Write the bounds of the nodes
+  **/
+  protected abstract void writeBounds(DataOutputStream out) throws IOException;
+
+  /**
+   * Read the bounds of the nodes written by writeBounds()
+  **/
+  protected abstract void readBounds(ByteBuffer in);
+
+  /**
+   * Build the tree. Called by the subclass once its own arrays are allocated.
+  **/
+  protected void build()
+  {
+    numNodes = 0;
+    buildNode(0, size);
+  }
+
+  /**
+   * Read the tree written by write() after its type.
+   * Called by the subclass once its own arrays are allocated.
+  **/
+  protected void read(ByteBuffer in)
+  {
+    numNodes = in.getInt();
+    for (int p=0; p < size; p++)
+      perm[p] = in.getInt();
+    for (int node=0; node < numNodes; node++)
+    {
+      start[node] = in.getInt();
+      end[node] = in.getInt();
+      left[node] = in.getInt();
+      right[node] = in.getInt();
+    }
+    readBounds(in);
+  }
+
+  /**
+   * Return the weighted squared distance between a and b
+  **/
+  protected double distance(double[] a, double[] b)
+  {
+    return DistanceKernel.getInstance().weightedSquaredDist(a, 0, b, 0, featureWeights, dimension);
+  }
+
+  /**
+   * Recursively make the node holding the examples of perm from position from to to (excluded)
+  **/
+  private int buildNode(int from, int to)
+  {
+    int node = numNodes;
+    numNodes++;
+    start[node] = from;
+    end[node] = to;
+    left[node] = -1;
+    right[node] = -1;
+    describeNode(node);
+    if (to - from <= LEAF_SIZE)
+      return node;
+
+    // split along the feature of largest weighted spread
+    int splitDim = -1;
+    double widest = 0;
+    double min, max, value, spread;
+    for (int j=0; j < dimension; j++)
+    {
+      min = points.get(perm[from], j);
+      max = min;
+      for (int p=from+1; p < to; p++)
+      {
+        value = points.get(perm[p], j);
+        if (value < min)
+          min = value;
+        else if (value > max)
+          max = value;
+      }
+      spread = Math.sqrt(featureWeights[j]) * (max - min);
+      if (spread > widest)
+      {
+        widest = spread;
+        splitDim = j;
+      }
+    }
+    // all the examples are at the same place
+    if (splitDim == -1)
+      return node;
+
+    int mid = (from + to)/2;
+    select(from, to, mid, splitDim);
+    left[node] = buildNode(from, mid);
+    right[node] = buildNode(mid, to);
+    return node;
+  }
+
+  /**
+   * Rearrange perm between from and to (excluded) so that position nth holds
+   * the example it would hold if sorted along feature dim (quickselect).
+  **/
+  private void select(int from, int to, int nth, int dim)
+  {
+    int lo = from;
+    int hi = to - 1;
+    while (lo < hi)
+    {
+      double pivot = points.get(perm[(lo + hi) >>> 1], dim);
+      int i = lo;
+      int j = hi;
+      while (i <= j)
+      {
+        while (points.get(perm[i], dim) < pivot)
+          i++;
+        while (points.get(perm[j], dim) > pivot)
+          j--;
+        if (i <= j)
+        {
+          int temp = perm[i];
+          perm[i] = perm[j];
+          perm[j] = temp;
+          i++;
+          j--;
+        }
+      }
+      if (nth <= j)
+        hi = j;
+      else if (nth >= i)
+        lo = i;
+      else
+        return;
+    }
+  }
+
+  /**
+   * Search the node for the nearest neighbors of q, visiting the closest child first
+   * Returns the number of distances to examples computed (abandoned ones included).
+  **/
+  private int search(int node, double[] q, kNNHeap heap, int excludeId)
+  {
+    int numDistances = 0;
+    if (left[node] == -1)
+    {
+      int i;
+      for (int p=start[node]; p < end[node]; p++)
+      {
+        i = perm[p];
+        // an abandoned distance is greater than the worst kept so it is rejected as the full one
+        if (ids[i] != excludeId)
+        {
+          heap.offer(points.squaredDist(i, q, featureWeights, heap.worst()), i);
+          numDistances++;
+        }
+      }
+      return numDistances;
+    }
+    int near = left[node];
+    int far = right[node];
+    double nearBound = lowerBound(near, q);
+    double farBound = lowerBound(far, q);
+    if (farBound < nearBound)
+    {
+      near = right[node];
+      far = left[node];
+      double temp = nearBound;
+      nearBound = farBound;
+      farBound = temp;
+    }
+    if (nearBound <= heap.worst())
+      numDistances = numDistances + search(near, q, heap, excludeId);
+    if (farBound <= heap.worst())
+      numDistances = numDistances + search(far, q, heap, excludeId);
+    return numDistances;
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A KD-tree over the training set of the kNN algorithm.
+ * Each node keeps the bounding box of the examples it holds.
+ * Best suited to examples with few features.
+**/
+public class kNNKDTree extends kNNIndex
+{
+
+  private double[] lower;     // lower corner of the box of each node (numNodes x dimension)
+  private double[] upper;     // upper corner of the box of each node (numNodes x dimension)
+
+  /**
+   * Build a KD-tree over the examples
+  **/
+  public kNNKDTree(kNNMatrix points, int[] ids, double[] featureWeights)
+  {
+    super(points, ids, featureWeights);
+    lower = new double[start.length * dimension];
+    upper = new double[start.length * dimension];
+    build();
+  }
+
+  /**
+   * Read a KD-tree written by write()
+  **/
+  public kNNKDTree(kNNMatrix points, int[] ids, double[] featureWeights, ByteBuffer in)
+  {
+    super(points, ids, featureWeights);
+    lower = new double[start.length * dimension];
+    upper = new double[start.length * dimension];
+    read(in);
+  }
+
+  /**
+   * Write the box of each node
+  **/
+  protected void writeBounds(DataOutputStream out) throws IOException
+  {
+    for (int i=0; i < numNodes * dimension; i++)
+    {
+      out.writeDouble(lower[i]);
+      out.writeDouble(upper[i]);
+    }
+  }
+
+  /**
+   * Read the box of each node
+  **/
+  protected void readBounds(ByteBuffer in)
+  {
+    for (int i=0; i < numNodes * dimension; i++)
+    {
+      lower[i] = in.getDouble();
+      upper[i] = in.getDouble();
+    }
+  }
+
+  /**
+   * Compute the bounding box of the node
+  **/
+  protected void describeNode(int node)
+  {
+    int offset = node * dimension;
+    double value;
+    for (int j=0; j < dimension; j++)
+    {
+      lower[offset + j] = points.get(perm[start[node]], j);
+      upper[offset + j] = lower[offset + j];
+    }
+    for (int p=start[node]+1; p < end[node]; p++)
+    {
+      for (int j=0; j < dimension; j++)
+      {
+        value = points.get(perm[p], j);
+        if (value < lower[offset + j])
+          lower[offset + j] = value;
+        else if (value > upper[offset + j])
+          upper[offset + j] = value;
+      }
+    }
+  }
+
+  /**
+   * Return the weighted squared distance of q to the box of the node
+  **/
+  protected double lowerBound(int node, double[] q)
+  {
+    int offset = node * dimension;
+    double sum = 0;
+    double diff;
+    for (int j=0; j < dimension; j++)
+    {
+      if (q[j] < lower[offset + j])
+        diff = lower[offset + j] - q[j];
+      else if (q[j] > upper[offset + j])
+        diff = q[j] - upper[offset + j];
+      else
+        continue;
+      sum = sum + featureWeights[j] * diff * diff;
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.nio.*;
+import ann.*;
+import distance.*;
+
+/**
+ * The features of a set of examples stored row after row in one contiguous array.
+ * Distances stream over a row instead of calling getAttribute() on each example.
+ * Features are kept in double precision or, to halve the memory, in single precision.
+ * A matrix may also read its features from buffers, such as the segments of a
+ * memory-mapped snapshot, each holding a whole number of rows.
+ * Distances over an array in double precision go through the DistanceKernel chosen at startup.
+**/
+public class kNNMatrix
+{
+
+  private int numRows;          // number of examples
+  private int numColumns;       // number of features of each example
+  private double[] values;      // the features row after row (null in single precision)
+  private float[] floatValues;  // the features row after row in single precision (null otherwise)
+  private DoubleBuffer[] buffers; // the features row after row read from buffers (null otherwise)
+  private int rowsPerBuffer;    // number of rows held by each buffer but the last
+
+  private static final DistanceKernel kernel = DistanceKernel.getInstance();
+
+  /**
+   * Copy the features of the examples in double precision
+  **/
+  public kNNMatrix(Example[] examples, int numColumns)
+  {
+    this(examples, numColumns, false);
+  }
+
+  /**
+   * Copy the features of the examples in double or single precision
+  **/
+  public kNNMatrix(Example[] examples, int numColumns, boolean singlePrecision)
+  {
+    this.numRows = examples.length;
+    this.numColumns = numColumns;
+    if (singlePrecision)
+      floatValues = new float[numRows * numColumns];
+    else
+      values = new double[numRows * numColumns];
+    for (int i=0; i < numRows; i++)
+    {
+      for (int j=0; j < numColumns; j++)
+        set(i, j, examples[i].getAttribute(j));
+    }
+  }
+
+  /**
+   * Use the features held row after row in values (they are not copied)
+  **/
+  public kNNMatrix(double[] values, int numRows, int numColumns)
+  {
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+    this.values = values;
+  }
+
+  /**
+   * Read the features from the first numRows*numColumns doubles of a buffer
+   * The buffer is not copied and only read at absolute positions.
+  **/
+  public kNNMatrix(DoubleBuffer buffer, int numRows, int numColumns)
+  {
+    this(new DoubleBuffer[] {buffer}, Math.max(1, numRows), numRows, numColumns);
+  }
+
+  /**
+   * Same as above with the rows split among buffers, rowsPerBuffer rows each
+   * (the last one may hold fewer), so that more than 2 GB can be read
+  **/
+  public kNNMatrix(DoubleBuffer[] buffers, int rowsPerBuffer, int numRows, int numColumns)
+  {
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+    this.buffers = buffers;
+    this.rowsPerBuffer = rowsPerBuffer;
+  }
+
+  /**
+   * Return the feature col of the example row
+  **/
+  public double get(int row, int col)
+  {
+    if (values != null)
+      return values[row * numColumns + col];
+    if (floatValues != null)
+      return floatValues[row * numColumns + col];
+    return buffer(row).get(offset(row) + col);
+  }
+
+  /**
+   * Set the feature col of the example row
+   * Not supported by a matrix read from a buffer.
+  **/
+  public void set(int row, int col, double value)
+  {
+    if (values != null)
+      values[row * numColumns + col] = value;
+    else if (floatValues != null)
+      floatValues[row * numColumns + col] = (float) value;
+    else
+      throw new UnsupportedOperationException("The features are read from a buffer");
+  }
+
+  /**
+   * Copy the features of the example row into features
+  **/
+  public void getRow(int row, double[] features)
+  {
+    int offset = offset(row);
+    if (values != null)
+    {
+      for (int j=0; j < numColumns; j++)
+        features[j] = values[offset + j];
+    }
+    else if (floatValues != null)
+    {
+      for (int j=0; j < numColumns; j++)
+        features[j] = floatValues[offset + j];
+    }
+    else
+    {
+      DoubleBuffer buffer = buffer(row);
+      for (int j=0; j < numColumns; j++)
+        features[j] = buffer.get(offset + j);
+    }
+  }
+
+  /**
+   * Copy the features of the examples from row from to row to (excluded)
+   * one after the other into block
+  **/
+  public void getRows(int from, int to, double[] block)
+  {
+    if (values != null)
+    {
+      System.arraycopy(values, from * numColumns, block, 0, (to - from) * numColumns);
+      return;
+    }
+    if (floatValues != null)
+    {
+      int length = (to - from) * numColumns;
+      int offset = from * numColumns;
+      for (int p=0; p < length; p++)
+        block[p] = floatValues[offset + p];
+      return;
+    }
+    DoubleBuffer buffer;
+    int offset;
+    for (int row=from; row < to; row++)
+    {
+      buffer = buffer(row);
+      offset = offset(row);
+      for (int j=0; j < numColumns; j++)
+        block[(row - from) * numColumns + j] = buffer.get(offset + j);
+    }
+  }
+
+  /**
+   * Return the weighted squared distance between the example row and q
+  **/
+  public double squaredDist(int row, double[] q, double[] weights)
+  {
+    int offset = offset(row);
+    if (values != null)
+      return kernel.weightedSquaredDist(values, offset, q, 0, weights, numColumns);
+
+    double sum = 0;
+    double diff;
+    if (floatValues != null)
+    {
+      for (int j=0; j < numColumns; j++)
+      {
+        diff = floatValues[offset + j] - q[j];
+        sum = sum + weights[j] * (diff * diff);
+      }
+    }
+    else
+    {
+      DoubleBuffer buffer = buffer(row);
+      for (int j=0; j < numColumns; j++)
+      {
+        diff = buffer.get(offset + j) - q[j];
+        sum = sum + weights[j] * (diff * diff);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Same as above but gives up once the distance is known to exceed bound
+   * and then returns a partial sum which is greater than bound
+   * (early abandoning, see DistanceKernel).
+  **/
+  public double squaredDist(int row, double[] q, double[] weights, double bound)
+  {
+    int offset = offset(row);
+    if (values != null)
+      return kernel.weightedSquaredDist(values, offset, q, 0, weights, numColumns, bound);
+
+    DoubleBuffer buffer = (buffers == null ? null : buffer(row));
+    double sum = 0;
+    double diff;
+    int blockEnd;
+    int j = 0;
+    while (j < numColumns)
+    {
+      blockEnd = Math.min(j + DistanceKernel.BLOCK_SIZE, numColumns);
+      if (floatValues != null)
+      {
+        for (; j < blockEnd; j++)
+        {
+          diff = floatValues[offset + j] - q[j];
+          sum = sum + weights[j] * (diff * diff);
+        }
+      }
+      else
+      {
+        for (; j < blockEnd; j++)
+        {
+          diff = buffer.get(offset + j) - q[j];
+          sum = sum + weights[j] * (diff * diff);
+        }
+      }
+      if (sum > bound)
+        return sum;
+    }
+    return sum;
+  }
+
+  /**
+   * Return the buffer holding the example row
+  **/
+  private DoubleBuffer buffer(int row)
+  {
+    return buffers[row / rowsPerBuffer];
+  }
+
+  /**
+   * Return the position of the first feature of the example row
+   * in its array or in its buffer
+  **/
+  private int offset(int row)
+  {
+    if (buffers == null)
+      return row * numColumns;
+    return (row % rowsPerBuffer) * numColumns;
+  }
+
+  /**
+   * Return the number of examples
+  **/
+  public int numRows()
+  {
+    return numRows;
+  }
+
+  /**
+   * Return the number of features of each example
+  **/
+  public int numColumns()
+  {
+    return numColumns;
+  }
+
+  /**
+   * Return true if the features are stored in single precision
+  **/
+  public boolean isSinglePrecision()
+  {
+    return (floatValues != null);
+  }
+}
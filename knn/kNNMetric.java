@@ -0,0 +1,285 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import distance.*;
+
+/**
+ * A distance between examples for the kNN algorithm.
+ * Every metric works on the features scaled by the square root of the feature
+ * weights, so that the weighted Euclidean distance of kNNExample is the
+ * Euclidean distance of the scaled features:
+ *   EUCLIDEAN   sqrt(sum_j w_j (a_j - b_j)^2)
+ *   MANHATTAN   sum_j sqrt(w_j) |a_j - b_j|
+ *   CHEBYSHEV   max_j sqrt(w_j) |a_j - b_j|
+ *   COSINE      1 - sum_j w_j a_j b_j / sqrt(sum_j w_j a_j^2 * sum_j w_j b_j^2)
+ * The cosine distance does not obey the triangle inequality.
+**/
+public abstract class kNNMetric
+{
+
+  public static final int EUCLIDEAN = 0;
+  public static final int MANHATTAN = 1;
+  public static final int CHEBYSHEV = 2;
+  public static final int COSINE = 3;
+
+  protected double[] featureWeights;  // the weights of the features
+  protected double[] scale;           // the square root of each weight
+  protected int dimension;            // number of features
+
+  /**
+   * Copy the feature weights
+  **/
+  protected kNNMetric(double[] featureWeights)
+  {
+    this.dimension = featureWeights.length;
+    this.featureWeights = new double[dimension];
+    this.scale = new double[dimension];
+    for (int j=0; j < dimension; j++)
+    {
+      this.featureWeights[j] = featureWeights[j];
+      this.scale[j] = Math.sqrt(featureWeights[j]);
+    }
+  }
+
+  /**
+   * Return the metric of the specified type under the feature weights
+  **/
+  public static kNNMetric getInstance(int type, double[] featureWeights)
+  {
+    switch (type)
+    {
+      case EUCLIDEAN:
+        return new Euclidean(featureWeights);
+      case MANHATTAN:
+        return new Manhattan(featureWeights);
+      case CHEBYSHEV:
+        return new Chebyshev(featureWeights);
+      case COSINE:
+        return new Cosine(featureWeights);
+      default:
+        throw new IllegalArgumentException("Unknown metric " + type);
+    }
+  }
+
+  /**
+   * Return the type of the metric of the specified name
+   * (euclidean, manhattan, chebyshev or cosine)
+  **/
+  public static int getType(String name)
+  {
+    if (name.equalsIgnoreCase("euclidean") || name.equalsIgnoreCase("l2"))
+      return EUCLIDEAN;
+    if (name.equalsIgnoreCase("manhattan") || name.equalsIgnoreCase("l1"))
+      return MANHATTAN;
+    if (name.equalsIgnoreCase("chebyshev"))
+      return CHEBYSHEV;
+    if (name.equalsIgnoreCase("cosine"))
+      return COSINE;
+    throw new IllegalArgumentException("Unknown metric " + name);
+  }
+
+  /**
+   * Return the distance between the example row of the matrix and q,
+   * squared if isSquared() is true.
+   * May give up as soon as it is known to exceed bound and return
+   * any value greater than bound.
+  **/
+  public abstract double distance(kNNMatrix points, int row, double[] q, double bound);
+
+  /**
+   * Return the distance between a and b, squared if isSquared() is true
+  **/
+  public abstract double distance(double[] a, double[] b);
+
+  /**
+   * Return true if the distances returned by distance() are squared
+  **/
+  public boolean isSquared()
+  {
+    return false;
+  }
+
+  /**
+   * Return the actual distance from a value returned by distance()
+  **/
+  public double toDistance(double value)
+  {
+    if (isSquared())
+      return Math.sqrt(value);
+    return value;
+  }
+
+  /**
+   * Return true if the metric obeys the triangle inequality
+  **/
+  public boolean isMetric()
+  {
+    return true;
+  }
+
+  /**
+   * The weighted Euclidean distance, kept squared as in kNNIndex
+  **/
+  private static class Euclidean extends kNNMetric
+  {
+    Euclidean(double[] featureWeights)
+    {
+      super(featureWeights);
+    }
+
+    public double distance(kNNMatrix points, int row, double[] q, double bound)
+    {
+      return points.squaredDist(row, q, featureWeights, bound);
+    }
+
+    public double distance(double[] a, double[] b)
+    {
+      double sum = 0;
+      double diff;
+      for (int j=0; j < dimension; j++)
+      {
+        diff = a[j] - b[j];
+        sum = sum + featureWeights[j] * (diff * diff);
+      }
+      return sum;
+    }
+
+    public boolean isSquared()
+    {
+      return true;
+    }
+  }
+
+  /**
+   * The sum of the scaled absolute differences
+  **/
+  private static class Manhattan extends kNNMetric
+  {
+    Manhattan(double[] featureWeights)
+    {
+      super(featureWeights);
+    }
+
+    public double distance(kNNMatrix points, int row, double[] q, double bound)
+    {
+      double sum = 0;
+      int blockEnd;
+      int j = 0;
+      while (j < dimension)
+      {
+        blockEnd = Math.min(j + DistanceKernel.BLOCK_SIZE, dimension);
+        for (; j < blockEnd; j++)
+          sum = sum + scale[j] * Math.abs(points.get(row, j) - q[j]);
+        if (sum > bound)
+          return sum;
+      }
+      return sum;
+    }
+
+    public double distance(double[] a, double[] b)
+    {
+      double sum = 0;
+      for (int j=0; j < dimension; j++)
+        sum = sum + scale[j] * Math.abs(a[j] - b[j]);
+      return sum;
+    }
+  }
+
+  /**
+   * The largest scaled absolute difference
+  **/
+  private static class Chebyshev extends kNNMetric
+  {
+    Chebyshev(double[] featureWeights)
+    {
+      super(featureWeights);
+    }
+
+    public double distance(kNNMatrix points, int row, double[] q, double bound)
+    {
+      double max = 0;
+      double diff;
+      for (int j=0; j < dimension; j++)
+      {
+        diff = scale[j] * Math.abs(points.get(row, j) - q[j]);
+        if (diff > max)
+        {
+          max = diff;
+          if (max > bound)
+            return max;
+        }
+      }
+      return max;
+    }
+
+    public double distance(double[] a, double[] b)
+    {
+      double max = 0;
+      double diff;
+      for (int j=0; j < dimension; j++)
+      {
+        diff = scale[j] * Math.abs(a[j] - b[j]);
+        if (diff > max)
+          max = diff;
+      }
+      return max;
+    }
+  }
+
+  /**
+   * One minus the cosine of the angle between the scaled features
+   * A partial sum says nothing of the final distance so the bound is ignored.
+   * The distance to a null vector is 1.
+  **/
+  private static class Cosine extends kNNMetric
+  {
+    Cosine(double[] featureWeights)
+    {
+      super(featureWeights);
+    }
+
+    public double distance(kNNMatrix points, int row, double[] q, double bound)
+    {
+      double dot = 0;
+      double normA = 0;
+      double normB = 0;
+      double value;
+      for (int j=0; j < dimension; j++)
+      {
+        value = points.get(row, j);
+        dot = dot + featureWeights[j] * value * q[j];
+        normA = normA + featureWeights[j] * value * value;
+        normB = normB + featureWeights[j] * q[j] * q[j];
+      }
+      return cosineDistance(dot, normA, normB);
+    }
+
+    public double distance(double[] a, double[] b)
+    {
+      double dot = 0;
+      double normA = 0;
+      double normB = 0;
+      for (int j=0; j < dimension; j++)
+      {
+        dot = dot + featureWeights[j] * a[j] * b[j];
+        normA = normA + featureWeights[j] * a[j] * a[j];
+        normB = normB + featureWeights[j] * b[j] * b[j];
+      }
+      return cosineDistance(dot, normA, normB);
+    }
+
+    public boolean isMetric()
+    {
+      return false;
+    }
+
+    private static double cosineDistance(double dot, double normA, double normB)
+    {
+      if (normA == 0 || normB == 0)
+        return 1;
+      // rounding may leave the cosine of parallel vectors slightly above 1
+      return Math.max(0, 1 - dot/Math.sqrt(normA * normB));
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.util.*;
+
+/**
+ * Exact nearest neighbor search over the training set of kNN under any kNNMetric.
+ * The distances of every example to a few pivot examples are computed once.
+ * By the triangle inequality an example i is at least |d(q,p) - d(i,p)| away
+ * from the query q for each pivot p, so it is skipped without computing its
+ * distance whenever this bound exceeds the distance of the farthest neighbor kept.
+ * The distances that are computed are abandoned early against that same neighbor.
+ * Pivots are chosen far apart (farthest first traversal) and are offered first.
+ * The examples are kept sorted by distance to the first pivot and visited from
+ * the query outwards, so that the heap fills up with close examples early and
+ * the search stops once the first pivot alone rules out all the examples left.
+ * A metric which does not obey the triangle inequality gets no pivots
+ * and is a linear scan with early abandoning.
+**/
+public class kNNPivotSearch implements kNNSearch
+{
+
+  public static final int NUM_PIVOTS = 16;      // default number of pivots
+  private static final double SLACK = 1e-12;    // relative rounding error allowed in the bounds
+
+  private kNNMatrix points;         // the features of each example
+  private int[] ids;                // the id of each example
+  private kNNMetric metric;         // the distance between examples
+  private int size;                 // number of examples
+  private int numPivots;            // number of pivots
+  private int[] pivots;             // the index of each pivot
+  private boolean[] isPivot;        // whether each example is a pivot
+  private int[] order;              // the examples sorted by distance to the first pivot
+  private double[] pivotDist;       // distance of the example order[pos] to pivot p at pos*numPivots + p
+  private double maxPivotDist;      // largest distance of an example to a pivot
+  private ThreadLocal scratch;      // distances of the query to the pivots for each thread
+
+  /**
+   * Choose at most numPivots pivots among the examples and
+   * compute the distance of every example to each of them.
+  **/
+  public kNNPivotSearch(kNNMatrix points, int[] ids, kNNMetric metric, int numPivots)
+  {
+    this.points = points;
+    this.ids = ids;
+    this.metric = metric;
+    this.size = points.numRows();
+    this.scratch = new ThreadLocal();
+    if (!metric.isMetric() || size == 0)
+      numPivots = 0;
+    numPivots = Math.min(numPivots, size);
+
+    // each pivot is the example farthest from the pivots chosen so far
+    // starting with the example farthest from the first one
+    int[] chosen = new int[numPivots];
+    double[][] column = new double[numPivots][];
+    double[] minDist = new double[size];
+    Arrays.fill(minDist, Double.POSITIVE_INFINITY);
+    double[] q = new double[points.numColumns()];
+    int next = 0;
+    int count = 0;
+    if (numPivots > 0)
+      next = farthest(0, q, new double[size], null);
+    while (count < numPivots)
+    {
+      chosen[count] = next;
+      column[count] = new double[size];
+      next = farthest(next, q, column[count], minDist);
+      count++;
+      if (minDist[next] == 0)
+        break;
+    }
+
+    this.numPivots = count;
+    this.pivots = new int[count];
+    this.isPivot = new boolean[size];
+    for (int p=0; p < count; p++)
+    {
+      pivots[p] = chosen[p];
+      isPivot[chosen[p]] = true;
+    }
+
+    // sort the examples by distance to the first pivot
+    // and keep their distances to the pivots in that order
+    this.order = new int[size];
+    this.pivotDist = new double[size * count];
+    if (count > 0)
+    {
+      kNNHeap sorted = new kNNHeap(size);
+      for (int i=0; i < size; i++)
+        sorted.offer(column[0][i], i);
+      sorted.sort();
+      for (int pos=0; pos < size; pos++)
+        order[pos] = sorted.getIndex(pos);
+    }
+    else
+    {
+      for (int pos=0; pos < size; pos++)
+        order[pos] = pos;
+    }
+    for (int pos=0; pos < size; pos++)
+    {
+      for (int p=0; p < count; p++)
+      {
+        pivotDist[pos * count + p] = column[p][order[pos]];
+        maxPivotDist = Math.max(maxPivotDist, column[p][order[pos]]);
+      }
+    }
+  }
+
+  /**
+   * Offer to the heap the exact nearest examples to the query q
+   * Distances are those returned by the metric (squared for the Euclidean distance).
+   * The distances counted include those of the query to every pivot.
+  **/
+  public int search(double[] q, kNNHeap heap, int excludeId)
+  {
+    int numDistances = 0;
+    if (numPivots == 0)
+    {
+      for (int i=0; i < size; i++)
+      {
+        if (ids[i] != excludeId)
+        {
+          heap.offer(metric.distance(points, i, q, heap.worst()), i);
+          numDistances++;
+        }
+      }
+      return numDistances;
+    }
+
+    double[] queryDist = getScratch();
+    double value;
+    double maxQueryDist = 0;
+    for (int p=0; p < numPivots; p++)
+    {
+      value = metric.distance(points, pivots[p], q, Double.POSITIVE_INFINITY);
+      numDistances++;
+      queryDist[p] = metric.toDistance(value);
+      maxQueryDist = Math.max(maxQueryDist, queryDist[p]);
+      if (ids[pivots[p]] != excludeId)
+        heap.offer(value, pivots[p]);
+    }
+    double tolerance = SLACK * (maxQueryDist + maxPivotDist);
+
+    // walk away from the query along the first pivot on both sides,
+    // always taking the example closest to the query on that pivot
+    int hi = firstPosition(queryDist[0]);
+    int lo = hi - 1;
+    int pos, i, offset;
+    double bound, gap;
+    boolean pruned;
+    while (lo >= 0 || hi < size)
+    {
+      if (hi >= size || lo >= 0 && queryDist[0] - pivotDist[lo * numPivots] <= pivotDist[hi * numPivots] - queryDist[0])
+      {
+        pos = lo;
+        lo--;
+      }
+      else
+      {
+        pos = hi;
+        hi++;
+      }
+      bound = metric.toDistance(heap.worst()) + tolerance;
+      offset = pos * numPivots;
+      gap = Math.abs(queryDist[0] - pivotDist[offset]);
+      // the examples left on both sides are at least as far on the first pivot
+      if (gap > bound)
+        break;
+      i = order[pos];
+      // the pivots were offered already
+      if (ids[i] == excludeId || isPivot[i])
+        continue;
+      pruned = false;
+      for (int p=1; p < numPivots && !pruned; p++)
+      {
+        if (Math.abs(queryDist[p] - pivotDist[offset + p]) > bound)
+          pruned = true;
+      }
+      if (!pruned)
+      {
+        heap.offer(metric.distance(points, i, q, heap.worst()), i);
+        numDistances++;
+      }
+    }
+    return numDistances;
+  }
+
+  /**
+   * Return the number of pivots
+  **/
+  public int getNumPivots()
+  {
+    return numPivots;
+  }
+
+  /**
+   * Write the distance of every example to the example row into dist
+   * and lower minDist (if not null) to it.
+   * Returns the example farthest from the examples seen by minDist
+   * (from the example row if minDist is null).
+  **/
+  private int farthest(int row, double[] q, double[] dist, double[] minDist)
+  {
+    points.getRow(row, q);
+    int far = row;
+    double farDist = -1;
+    double d;
+    for (int i=0; i < size; i++)
+    {
+      dist[i] = metric.toDistance(metric.distance(points, i, q, Double.POSITIVE_INFINITY));
+      d = dist[i];
+      if (minDist != null)
+      {
+        if (dist[i] < minDist[i])
+          minDist[i] = dist[i];
+        d = minDist[i];
+      }
+      if (d > farDist)
+      {
+        farDist = d;
+        far = i;
+      }
+    }
+    return far;
+  }
+
+  /**
+   * Return the first position in order of an example at least at distance dist of the first pivot
+  **/
+  private int firstPosition(double dist)
+  {
+    int lo = 0;
+    int hi = size;
+    int mid;
+    while (lo < hi)
+    {
+      mid = (lo + hi) >>> 1;
+      if (pivotDist[mid * numPivots] < dist)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Return the buffer of the distances of the query to the pivots for the calling thread
+  **/
+  private double[] getScratch()
+  {
+    double[] queryDist = (double[]) scratch.get();
+    if (queryDist == null)
+    {
+      queryDist = new double[numPivots];
+      scratch.set(queryDist);
+    }
+    return queryDist;
+  }
+}
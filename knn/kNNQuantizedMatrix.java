@@ -0,0 +1,174 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.io.*;
+import java.nio.*;
+import distance.*;
+
+/**
+ * The features of a set of examples quantized to one byte each, row after row.
+ * Feature j is mapped linearly from [min_j, max_j] onto the 256 codes -128..127
+ * so a row takes 8 times less memory than in double precision.
+ * Distances are computed in code units: the query is expressed in codes
+ * (without rounding) and the weights are scaled by the square of the step
+ * between two codes, so no row needs to be decoded.
+ * The codes may also be read in place from a buffer, such as a memory-mapped
+ * snapshot (see kNNSnapshot).
+**/
+public class kNNQuantizedMatrix
+{
+
+  public static final int LEVELS = 256;   // number of codes of a feature
+
+  private int numRows;          // number of examples
+  private int numColumns;       // number of features of each example
+  private byte[] codes;         // the codes of the features row after row (null if read from a buffer)
+  private ByteBuffer buffer;    // the codes of the features row after row read from a buffer (null otherwise)
+  private double[] min;         // value of the smallest code of each feature
+  private double[] step;        // difference of value between two consecutive codes of each feature
+
+  /**
+   * Quantize the rows of a matrix between the min and max of each feature
+   * Values out of range are clamped to the first or last code.
+  **/
+  public kNNQuantizedMatrix(kNNMatrix matrix, kNNFeatureStats stats)
+  {
+    this.numRows = matrix.numRows();
+    this.numColumns = matrix.numColumns();
+    this.codes = new byte[numRows * numColumns];
+    this.min = new double[numColumns];
+    this.step = new double[numColumns];
+    for (int j=0; j < numColumns; j++)
+    {
+      min[j] = stats.getMin(j);
+      step[j] = (stats.getMax(j) - min[j])/(LEVELS - 1);
+      // a constant feature is coded exactly by its smallest code
+      if (step[j] == 0)
+        step[j] = 1;
+    }
+    long code;
+    for (int i=0; i < numRows; i++)
+    {
+      for (int j=0; j < numColumns; j++)
+      {
+        code = Math.round((matrix.get(i, j) - min[j])/step[j]);
+        code = Math.max(0, Math.min(LEVELS - 1, code));
+        codes[i * numColumns + j] = (byte) (code - LEVELS/2);
+      }
+    }
+  }
+
+  /**
+   * Read the codes from the first numRows*numColumns bytes of a buffer (not copied)
+   * with the value of the smallest code and the step between two codes of each feature
+  **/
+  public kNNQuantizedMatrix(ByteBuffer buffer, int numRows, int numColumns, double[] min, double[] step)
+  {
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+    this.buffer = buffer;
+    this.min = min;
+    this.step = step;
+  }
+
+  /**
+   * Write the smallest value and the step of each feature then the codes
+   * row after row (read back by kNNSnapshot)
+  **/
+  public void write(DataOutputStream out) throws IOException
+  {
+    for (int j=0; j < numColumns; j++)
+      out.writeDouble(min[j]);
+    for (int j=0; j < numColumns; j++)
+      out.writeDouble(step[j]);
+    if (codes != null)
+    {
+      out.write(codes);
+      return;
+    }
+    for (int p=0; p < numRows * numColumns; p++)
+      out.writeByte(buffer.get(p));
+  }
+
+  /**
+   * Write the features q expressed in code units into codedQuery
+  **/
+  public void codeQuery(double[] q, double[] codedQuery)
+  {
+    for (int j=0; j < numColumns; j++)
+      codedQuery[j] = (q[j] - min[j])/step[j] - LEVELS/2;
+  }
+
+  /**
+   * Write the weights of the distance in code units into codedWeights
+  **/
+  public void codeWeights(double[] weights, double[] codedWeights)
+  {
+    for (int j=0; j < numColumns; j++)
+      codedWeights[j] = weights[j] * step[j] * step[j];
+  }
+
+  /**
+   * Return the weighted squared distance between the quantized example row and
+   * a query, both in code units (see codeQuery and codeWeights).
+   * Gives up once the distance is known to exceed bound and then returns
+   * a partial sum which is greater than bound.
+  **/
+  public double squaredDist(int row, double[] codedQuery, double[] codedWeights, double bound)
+  {
+    int offset = row * numColumns;
+    double sum = 0;
+    double diff;
+    int blockEnd;
+    int j = 0;
+    while (j < numColumns)
+    {
+      blockEnd = Math.min(j + DistanceKernel.BLOCK_SIZE, numColumns);
+      if (codes != null)
+      {
+        for (; j < blockEnd; j++)
+        {
+          diff = codedQuery[j] - codes[offset + j];
+          sum = sum + codedWeights[j] * (diff * diff);
+        }
+      }
+      else
+      {
+        for (; j < blockEnd; j++)
+        {
+          diff = codedQuery[j] - buffer.get(offset + j);
+          sum = sum + codedWeights[j] * (diff * diff);
+        }
+      }
+      if (sum > bound)
+        return sum;
+    }
+    return sum;
+  }
+
+  /**
+   * Return the decoded feature col of the example row
+  **/
+  public double get(int row, int col)
+  {
+    byte code = (codes != null ? codes[row * numColumns + col] : buffer.get(row * numColumns + col));
+    return min[col] + (code + LEVELS/2) * step[col];
+  }
+
+  /**
+   * Return the number of examples
+  **/
+  public int numRows()
+  {
+    return numRows;
+  }
+
+  /**
+   * Return the number of features of each example
+  **/
+  public int numColumns()
+  {
+    return numColumns;
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+/**
+ * Nearest neighbor search over the training set of kNN quantized to one byte per feature.
+ * A first scan over the codes (see kNNQuantizedMatrix) keeps the rerank times
+ * more candidates than neighbors asked for, and the candidates are then ranked
+ * again under the exact weighted distance over the features in double precision.
+ * Only the rows of the candidates are read in double precision, which suits
+ * features mapped from a snapshot (see kNNSnapshot).
+ * The neighbors found may differ from the exact ones when quantization moves a
+ * true neighbor behind more than rerank*k candidates.
+**/
+public class kNNQuantizedSearch implements kNNSearch
+{
+
+  private kNNQuantizedMatrix codes;   // the quantized features of each example
+  private kNNMatrix points;           // the exact features of each example
+  private int[] ids;                  // the id of each example
+  private double[] featureWeights;    // the weights of the distance
+  private double[] codedWeights;      // the weights of the distance in code units
+  private int size;                   // number of examples
+  private int rerank;                 // number of candidates ranked again for each neighbor
+  private ThreadLocal scratch;        // coded query and candidate heap of each thread
+
+  /**
+   * Quantize the examples between the min and max of each feature given by stats
+  **/
+  public kNNQuantizedSearch(kNNMatrix points, int[] ids, double[] featureWeights, kNNFeatureStats stats, int rerank)
+  {
+    this(points, new kNNQuantizedMatrix(points, stats), ids, featureWeights, rerank);
+  }
+
+  /**
+   * Search the examples already quantized into codes (such as codes loaded from a snapshot)
+  **/
+  public kNNQuantizedSearch(kNNMatrix points, kNNQuantizedMatrix codes, int[] ids, double[] featureWeights, int rerank)
+  {
+    this.points = points;
+    this.ids = ids;
+    this.featureWeights = featureWeights;
+    this.size = points.numRows();
+    this.rerank = Math.max(1, rerank);
+    this.codes = codes;
+    this.codedWeights = new double[featureWeights.length];
+    codes.codeWeights(featureWeights, codedWeights);
+    this.scratch = new ThreadLocal();
+  }
+
+  /**
+   * Offer to the heap the nearest examples to the query q among the candidates
+   * of the quantized scan, at their exact squared distance
+   * The distances counted are those of the scan and those ranked again.
+  **/
+  public int search(double[] q, kNNHeap heap, int excludeId)
+  {
+    Scratch buffers = getScratch(Math.min(size, rerank * heap.capacity()));
+    kNNHeap candidates = buffers.candidates;
+    codes.codeQuery(q, buffers.codedQuery);
+    int numDistances = 0;
+    for (int i=0; i < size; i++)
+    {
+      if (ids[i] != excludeId)
+      {
+        candidates.offer(codes.squaredDist(i, buffers.codedQuery, codedWeights, candidates.worst()), i);
+        numDistances++;
+      }
+    }
+    int i;
+    for (int c=0; c < candidates.size(); c++)
+    {
+      i = candidates.getIndex(c);
+      heap.offer(points.squaredDist(i, q, featureWeights, heap.worst()), i);
+    }
+    return numDistances + candidates.size();
+  }
+
+  /**
+   * Return the quantized examples
+  **/
+  public kNNQuantizedMatrix getCodes()
+  {
+    return codes;
+  }
+
+  /**
+   * Return the number of candidates ranked again for each neighbor
+  **/
+  public int getRerank()
+  {
+    return rerank;
+  }
+
+  /**
+   * Return the buffers of the calling thread with an empty heap of capacity candidates
+  **/
+  private Scratch getScratch(int capacity)
+  {
+    Scratch buffers = (Scratch) scratch.get();
+    if (buffers == null)
+    {
+      buffers = new Scratch();
+      buffers.codedQuery = new double[featureWeights.length];
+      scratch.set(buffers);
+    }
+    if (buffers.candidates == null || buffers.candidates.capacity() != capacity)
+      buffers.candidates = new kNNHeap(capacity);
+    buffers.candidates.clear();
+    return buffers;
+  }
+
+  /**
+   * Buffers of a search: the query in code units and the heap of candidates
+  **/
+  private static class Scratch
+  {
+    double[] codedQuery;
+    kNNHeap candidates;
+  }
+}
@@ -0,0 +1,327 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Latency and throughput of the queries answered by kNN.
+ * The time of a query is split into the search of its neighbors (the distances
+ * and the selection of the closest examples, which the searches interleave),
+ * the sort of the neighbors kept and their weighing for each k and kernel width.
+ * Latencies are counted in buckets growing geometrically as in HDR histograms:
+ * SUB_BUCKETS buckets of equal width for each power of two, so that any
+ * percentile is known within 1/SUB_BUCKETS of its value.
+ * Each querying thread records into counters that only it writes, so no lock
+ * is taken; the counters of all the threads are summed when read.
+ * The statistics can be watched through JMX once registered (see register).
+**/
+public class kNNQueryStats implements kNNQueryStatsMBean
+{
+
+  public static final int SUB_BUCKETS = 32;     // buckets of each power of two of the latency
+  private static final int SUB_BITS = 5;        // log2 of SUB_BUCKETS
+  private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  // position of each total among the counters of a thread
+  private static final int QUERIES = 0;
+  private static final int DISTANCES = 1;
+  private static final int SEARCH_TIME = 2;
+  private static final int SORT_TIME = 3;
+  private static final int WEIGH_TIME = 4;
+  private static final int MAX_LATENCY = 5;
+  private static final int FIRST_START = 6;
+  private static final int LAST_END = 7;
+  private static final int NUM_TOTALS = 8;
+
+  private volatile List recorders;          // the counters of each thread since the last reset
+  private volatile ThreadLocal recorder;    // the counters of the calling thread
+
+  public kNNQueryStats()
+  {
+    reset();
+  }
+
+  /**
+   * Forget all the queries recorded so far
+   * Queries being recorded by other threads at the same time may be lost.
+  **/
+  public void reset()
+  {
+    recorder = new ThreadLocal();
+    recorders = new ArrayList();
+  }
+
+  /**
+   * Record a query started at time start (as given by System.nanoTime) which
+   * computed numDistances distances and spent the specified nanoseconds
+   * searching, sorting and weighing its neighbors
+  **/
+  public void record(long start, long searchTime, long sortTime, long weighTime, long numDistances)
+  {
+    getRecorder().record(start, searchTime, sortTime, weighTime, numDistances);
+  }
+
+  /**
+   * Register these statistics with the platform MBean server as
+   * smartlearn:type=kNNQueryStats,name=[name]
+  **/
+  public void register(String name) throws JMException
+  {
+    ObjectName objectName = new ObjectName("smartlearn:type=kNNQueryStats,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+  }
+
+  public long getNumQueries()
+  {
+    return total(QUERIES);
+  }
+
+  /**
+   * Return the number of queries per second between the start of the first
+   * query and the end of the last one
+  **/
+  public double getQueriesPerSecond()
+  {
+    Recorder[] all = getRecorders();
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    long numQueries = 0;
+    for (int t=0; t < all.length; t++)
+    {
+      if (all[t].totals.get(QUERIES) == 0)
+        continue;
+      numQueries = numQueries + all[t].totals.get(QUERIES);
+      first = Math.min(first, all[t].totals.get(FIRST_START));
+      last = Math.max(last, all[t].totals.get(LAST_END));
+    }
+    if (numQueries == 0 || last <= first)
+      return 0;
+    return numQueries/((last - first)/1e9);
+  }
+
+  public double getMeanLatency()
+  {
+    long numQueries = getNumQueries();
+    if (numQueries == 0)
+      return 0;
+    return (total(SEARCH_TIME) + total(SORT_TIME) + total(WEIGH_TIME))/1000.0/numQueries;
+  }
+
+  public double getMedianLatency()
+  {
+    return getLatency(0.5);
+  }
+
+  public double get90thPercentileLatency()
+  {
+    return getLatency(0.9);
+  }
+
+  public double get99thPercentileLatency()
+  {
+    return getLatency(0.99);
+  }
+
+  public double get999thPercentileLatency()
+  {
+    return getLatency(0.999);
+  }
+
+  public double getMaxLatency()
+  {
+    Recorder[] all = getRecorders();
+    long max = 0;
+    for (int t=0; t < all.length; t++)
+      max = Math.max(max, all[t].totals.get(MAX_LATENCY));
+    return max/1000.0;
+  }
+
+  /**
+   * Return the latency in microseconds under which falls the fraction p of the queries
+   * It is rounded up to the end of its bucket.
+  **/
+  public double getLatency(double p)
+  {
+    Recorder[] all = getRecorders();
+    long[] counts = new long[NUM_BUCKETS];
+    long numQueries = 0;
+    for (int t=0; t < all.length; t++)
+    {
+      for (int b=0; b < NUM_BUCKETS; b++)
+      {
+        counts[b] = counts[b] + all[t].counts.get(b);
+        numQueries = numQueries + all[t].counts.get(b);
+      }
+    }
+    if (numQueries == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(p * numQueries));
+    long seen = 0;
+    for (int b=0; b < NUM_BUCKETS; b++)
+    {
+      seen = seen + counts[b];
+      if (seen >= rank)
+        return Math.min(highestValue(b)/1000.0, getMaxLatency());
+    }
+    return getMaxLatency();
+  }
+
+  /**
+   * Return the mean number of distances computed by a query
+  **/
+  public double getDistancesPerQuery()
+  {
+    long numQueries = getNumQueries();
+    if (numQueries == 0)
+      return 0;
+    return (double) total(DISTANCES)/numQueries;
+  }
+
+  /**
+   * Return the fraction of the time spent searching the neighbors
+  **/
+  public double getSearchFraction()
+  {
+    return fraction(SEARCH_TIME);
+  }
+
+  /**
+   * Return the fraction of the time spent sorting the neighbors
+  **/
+  public double getSortFraction()
+  {
+    return fraction(SORT_TIME);
+  }
+
+  /**
+   * Return the fraction of the time spent weighing the neighbors
+  **/
+  public double getWeighFraction()
+  {
+    return fraction(WEIGH_TIME);
+  }
+
+  /**
+   * Print the statistics
+  **/
+  public void print()
+  {
+    System.out.println("Queries =  " + getNumQueries() + " , Throughput =  " + getQueriesPerSecond() + " queries/s");
+    System.out.println("Latency (us) : mean =  " + getMeanLatency() + " , p50 =  " + getMedianLatency()
+                       + " , p90 =  " + get90thPercentileLatency() + " , p99 =  " + get99thPercentileLatency()
+                       + " , p99.9 =  " + get999thPercentileLatency() + " , max =  " + getMaxLatency());
+    System.out.println("Distances per query =  " + getDistancesPerQuery() + " , Search =  " + 100 * getSearchFraction()
+                       + "% , Sort =  " + 100 * getSortFraction() + "% , Weigh =  " + 100 * getWeighFraction() + "%");
+  }
+
+  private double fraction(int which)
+  {
+    long time = total(SEARCH_TIME) + total(SORT_TIME) + total(WEIGH_TIME);
+    if (time == 0)
+      return 0;
+    return (double) total(which)/time;
+  }
+
+  /**
+   * Return the sum of a total over all the threads
+  **/
+  private long total(int which)
+  {
+    Recorder[] all = getRecorders();
+    long sum = 0;
+    for (int t=0; t < all.length; t++)
+      sum = sum + all[t].totals.get(which);
+    return sum;
+  }
+
+  private Recorder[] getRecorders()
+  {
+    List list = recorders;
+    synchronized (list)
+    {
+      return (Recorder[]) list.toArray(new Recorder[list.size()]);
+    }
+  }
+
+  /**
+   * Return the counters of the calling thread
+  **/
+  private Recorder getRecorder()
+  {
+    ThreadLocal local = recorder;
+    Recorder counters = (Recorder) local.get();
+    if (counters == null)
+    {
+      counters = new Recorder();
+      local.set(counters);
+      List list = recorders;
+      synchronized (list)
+      {
+        list.add(counters);
+      }
+    }
+    return counters;
+  }
+
+  /**
+   * Return the bucket of a latency in nanoseconds
+   * Latencies below SUB_BUCKETS have a bucket each, then each power of two
+   * is split into SUB_BUCKETS buckets.
+  **/
+  private static int bucket(long latency)
+  {
+    if (latency < SUB_BUCKETS)
+      return (int) Math.max(0, latency);
+    int shift = 63 - Long.numberOfLeadingZeros(latency) - SUB_BITS;
+    return (int) (shift * SUB_BUCKETS + (latency >> shift));
+  }
+
+  /**
+   * Return the highest latency in nanoseconds falling in bucket b
+  **/
+  private static long highestValue(int b)
+  {
+    if (b < SUB_BUCKETS)
+      return b;
+    int shift = b/SUB_BUCKETS - 1;
+    long sub = b % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * The counters of one thread
+   * Only the owning thread writes them, so plain ordered writes are enough
+   * for other threads to read them.
+  **/
+  private static class Recorder
+  {
+    AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);    // number of queries of each bucket
+    AtomicLongArray totals = new AtomicLongArray(NUM_TOTALS);     // the totals of the queries
+
+    void record(long start, long searchTime, long sortTime, long weighTime, long numDistances)
+    {
+      long latency = searchTime + sortTime + weighTime;
+      int b = bucket(latency);
+      counts.lazySet(b, counts.get(b) + 1);
+      if (totals.get(QUERIES) == 0)
+        totals.lazySet(FIRST_START, start);
+      add(DISTANCES, numDistances);
+      add(SEARCH_TIME, searchTime);
+      add(SORT_TIME, sortTime);
+      add(WEIGH_TIME, weighTime);
+      if (latency > totals.get(MAX_LATENCY))
+        totals.lazySet(MAX_LATENCY, latency);
+      totals.lazySet(LAST_END, start + latency);
+      add(QUERIES, 1);
+    }
+
+    private void add(int which, long value)
+    {
+      totals.lazySet(which, totals.get(which) + value);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+/**
+ * The statistics of kNNQueryStats seen through JMX.
+ * Latencies are in microseconds.
+**/
+public interface kNNQueryStatsMBean
+{
+  public long getNumQueries();
+  public double getQueriesPerSecond();
+  public double getMeanLatency();
+  public double getMedianLatency();
+  public double get90thPercentileLatency();
+  public double get99thPercentileLatency();
+  public double get999thPercentileLatency();
+  public double getMaxLatency();
+  public double getDistancesPerQuery();
+  public double getSearchFraction();
+  public double getSortFraction();
+  public double getWeighFraction();
+  public void reset();
+}
@@ -0,0 +1,22 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+/**
+ * A search for the nearest neighbors of a query among the training set of kNN.
+**/
+public interface kNNSearch
+{
+
+  /**
+   * Offer to the heap the nearest examples to the query q.
+   * Once sorted the heap holds the heap.capacity() nearest examples found by ascending distance.
+   * Distances are those of the kNNMetric of the search (squared for the Euclidean
+   * distance) and the indexes are positions in the training set.
+   * The example of id excludeId is left out of the search (-1 to keep all).
+   * Returns the number of distances to examples computed by the search, whether
+   * or not they were offered to the heap (abandoned ones included).
+   * Implementations only read their data so several threads may search at once.
+  **/
+  public int search(double[] q, kNNHeap heap, int excludeId);
+}
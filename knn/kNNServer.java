@@ -0,0 +1,234 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import ann.*;
+
+/**
+ * Long running scoring service for the kNN algorithm.
+ * The training set is loaded, scaled and indexed once. Feature vectors
+ * (one per line, separated by spaces or commas) are then read from stdin or
+ * from clients of a local TCP port, and for each of them the prediction for
+ * the chosen k and kernel width is written on its own line, in order.
+ * Lines are scored in micro-batches: whatever is already buffered (up to
+ * BATCH_SIZE lines) is scored together and flushed at once. The lines of a
+ * batch are searched as one block of queries when the model searches in
+ * blocks (see kNN.setBatch, -batch).
+ * A client whose connection fails, or whose lines make the model fail, is
+ * logged and closed without stopping the others.
+ * The latency of the queries is published through JMX (see kNNQueryStats).
+**/
+public class kNNServer
+{
+
+  public static final int BATCH_SIZE = 256;   // maximum number of lines scored together
+
+  private kNN model;              // the indexed training set
+  private int[] k;                // the number of nearest neighbors
+  private int[] kernel;           // the kernel width
+  private int numFeatures;        // number of features of each vector
+
+  public kNNServer(kNN model, int numFeatures, int k, int kernel)
+  {
+    this.model = model;
+    this.numFeatures = numFeatures;
+    this.k = new int[] {k};
+    this.kernel = new int[] {kernel};
+  }
+
+  /**
+   * Score the lines read from in and write the predictions to out until in is closed
+  **/
+  public void serve(BufferedReader in, PrintWriter out) throws IOException
+  {
+    String[] batch = new String[BATCH_SIZE];
+    double[] rows = new double[BATCH_SIZE * numFeatures];
+    kNNMatrix queries = new kNNMatrix(rows, BATCH_SIZE, numFeatures);
+    boolean[] valid = new boolean[BATCH_SIZE];
+    double[][][] predictions = new double[BATCH_SIZE][1][1];
+    int size, numRows, r;
+    String line = in.readLine();
+    while (line != null)
+    {
+      // block for the first line then take whatever else is already there
+      size = 0;
+      batch[size] = line;
+      size++;
+      while (size < BATCH_SIZE && in.ready())
+      {
+        line = in.readLine();
+        if (line == null)
+          break;
+        batch[size] = line;
+        size++;
+      }
+      // parse the valid lines into consecutive rows and score them together
+      numRows = 0;
+      for (int i=0; i < size; i++)
+      {
+        valid[i] = parse(batch[i], rows, numRows * numFeatures);
+        if (valid[i])
+          numRows++;
+      }
+      model.predict(queries, 0, numRows, k, kernel, predictions);
+      r = 0;
+      for (int i=0; i < size; i++)
+      {
+        if (valid[i])
+        {
+          out.println(predictions[r][0][0]);
+          r++;
+        }
+        else
+        {
+          out.println("NaN");
+        }
+      }
+      out.flush();
+      if (line != null)
+        line = in.readLine();
+    }
+  }
+
+  /**
+   * Serve each client of the local port in its own thread
+  **/
+  public void listen(int port) throws IOException
+  {
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    ExecutorService clients = Executors.newCachedThreadPool();
+    System.err.println("Listening on port " + port);
+    while (true)
+    {
+      final Socket client = server.accept();
+      clients.execute(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(client.getOutputStream())));
+            serve(in, out);
+          }
+          catch (IOException e)
+          {
+            System.err.println(e.toString());
+          }
+          catch (RuntimeException e)
+          {
+            System.err.println("Client " + client.getRemoteSocketAddress() + " failed:");
+            e.printStackTrace();
+          }
+          finally
+          {
+            try
+            {
+              client.close();
+            }
+            catch (IOException e)
+            {
+              System.err.println(e.toString());
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Read the features of a line into features starting at offset
+   * Returns false if the line does not hold exactly numFeatures numbers.
+  **/
+  private boolean parse(String line, double[] features, int offset)
+  {
+    StringTokenizer st = new StringTokenizer(line, " ,\t");
+    if (st.countTokens() != numFeatures)
+      return false;
+    try
+    {
+      for (int i=0; i < numFeatures; i++)
+        features[offset + i] = Double.parseDouble(st.nextToken());
+    }
+    catch (NumberFormatException e)
+    {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Start of this program.
+   * The training set is made of the first examples of the data file
+   * or is loaded from a snapshot (see kNNSnapshot) with -load.
+   * Reads from stdin unless a port is given.
+   * With -batch the lines of a batch are searched as a block (see kNN.setBatch).
+  **/
+  public static void main(String[] args) throws IOException
+  {
+    boolean batch = (args.length > 0 && args[args.length-1].equals("-batch"));
+    if (batch)
+      args = Arrays.copyOf(args, args.length-1);
+    if (args.length != 4 && args.length != 5)
+    {
+      printUsage();
+    }
+    else
+    {
+      kNN model;
+      if (args[0].equals("-load"))
+      {
+        model = kNNSnapshot.load(args[1]);
+      }
+      else
+      {
+        DataSet dataFile = new DataSet(args[0]);
+        model = new kNN(dataFile, Integer.parseInt(args[1]));
+        // the server only predicts
+        model.dropExamples();
+      }
+      int k = Integer.parseInt(args[2]);
+      int kernel = Integer.parseInt(args[3]);
+      // every answer needs k neighbors among the training set
+      if (k < 1 || k > model.getTrainSetSize() || kernel < 0)
+      {
+        System.out.println("k must be between 1 and the training set size (" + model.getTrainSetSize() + ") and the kernel width at least 0.");
+        printUsage();
+        return;
+      }
+      model.setBatch(batch);
+
+      kNNServer server = new kNNServer(model, model.getNumFeatures(), k, kernel);
+      try
+      {
+        model.getQueryStats().register("kNNServer");
+      }
+      catch (JMException e)
+      {
+        System.err.println(e.toString());
+      }
+      if (args.length == 5)
+      {
+        server.listen(Integer.parseInt(args[4]));
+      }
+      else
+      {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        server.serve(in, out);
+        out.flush();
+      }
+    }
+  }
+
+  private static void printUsage()
+  {
+    System.out.println("Wrong usage. Type java kNNServer [data file] [training set size] [k] [kernel width] [port] [-batch]");
+    System.out.println("            or java kNNServer -load [snapshot file] [k] [kernel width] [port] [-batch]");
+  }
+}
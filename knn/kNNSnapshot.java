@@ -0,0 +1,210 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import ann.*;
+
+/**
+ * Binary snapshot of a kNN ready to predict.
+ * Holds the features of the training set (after the header so that they are
+ * aligned on 8 bytes), the quantized features if the kNN searches them (see
+ * kNN.setQuantized), the feature weights, the ids and class labels of the
+ * examples and the nodes of the neighbor index.
+ * A quantized kNN is loaded quantized, with its codes mapped in place, so
+ * that neither loading nor its scans read the features in double precision.
+ * Snapshots are loaded by memory-mapping the file: the features are read
+ * in place from the mapped pages, which several processes share, and only the
+ * small arrays and the index nodes are copied. The features are mapped in
+ * segments of at most SEGMENT_SIZE bytes holding whole rows, so that they
+ * may take more than the 2 GB of a single mapping; what follows them is
+ * mapped at once and must fit in 2 GB.
+ * An approximate HNSW search is not saved and must be set up again.
+**/
+public class kNNSnapshot
+{
+
+  public static final int MAGIC = 0x4B4E4E53;   // "KNNS"
+  public static final int VERSION = 2;                // version 1 has no quantized features
+  public static final int SEGMENT_SIZE = 1 << 30;   // largest number of bytes of features mapped at once
+  private static final int HEADER_SIZE = 16;         // four ints
+
+  /**
+   * Write a snapshot into the file
+   * Features stored in single precision are saved in double precision.
+   * The codes of the quantized search are saved if there is one (null otherwise).
+  **/
+  public static void save(String filename, kNNMatrix trainMatrix, int[] ids, int[] labels, double[] featureWeights, kNNIndex index,
+                          kNNQuantizedSearch quantized) throws IOException
+  {
+    int numRows = trainMatrix.numRows();
+    int numColumns = trainMatrix.numColumns();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+    try
+    {
+      // header of four ints
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numRows);
+      out.writeInt(numColumns);
+      for (int i=0; i < numRows; i++)
+        for (int j=0; j < numColumns; j++)
+          out.writeDouble(trainMatrix.get(i, j));
+      if (quantized == null)
+      {
+        out.writeInt(0);
+      }
+      else
+      {
+        out.writeInt(1);
+        out.writeInt(quantized.getRerank());
+        quantized.getCodes().write(out);
+      }
+      for (int j=0; j < numColumns; j++)
+        out.writeDouble(featureWeights[j]);
+      for (int i=0; i < numRows; i++)
+        out.writeInt(ids[i]);
+      for (int i=0; i < numRows; i++)
+        out.writeInt(labels[i]);
+      if (index == null)
+      {
+        out.writeInt(0);
+      }
+      else
+      {
+        out.writeInt(1);
+        index.write(out);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Map the file of a snapshot and return the kNN it holds
+  **/
+  public static kNN load(String filename) throws IOException
+  {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    kNNMatrix trainMatrix;
+    kNNQuantizedMatrix codes = null;
+    int rerank = 0;
+    MappedByteBuffer in;
+    int numRows, numColumns;
+    try
+    {
+      // the mappings stay valid once the file is closed
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_SIZE)
+        throw new IOException(filename + " is not a kNN snapshot");
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC)
+        throw new IOException(filename + " is not a kNN snapshot");
+      int version = header.getInt();
+      if (version != 1 && version != VERSION)
+        throw new IOException("Unknown version " + version + " of the kNN snapshot " + filename);
+      numRows = header.getInt();
+      numColumns = header.getInt();
+
+      // read the features in place, a segment of whole rows at a time
+      long rowSize = 8L * numColumns;
+      if (numRows < 0 || numColumns < 0 || HEADER_SIZE + rowSize * numRows > channel.size())
+        throw new IOException("The kNN snapshot " + filename + " is truncated");
+      int rowsPerSegment = (int) Math.max(1, SEGMENT_SIZE / Math.max(1, rowSize));
+      DoubleBuffer[] segments = new DoubleBuffer[(int) ((numRows + (long) rowsPerSegment - 1)/rowsPerSegment)];
+      long position = HEADER_SIZE;
+      long length;
+      for (int s=0; s < segments.length; s++)
+      {
+        length = rowSize * Math.min(rowsPerSegment, numRows - (long) s * rowsPerSegment);
+        segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, length).asDoubleBuffer();
+        position = position + length;
+      }
+      trainMatrix = new kNNMatrix(segments, rowsPerSegment, numRows, numColumns);
+
+      // map the codes of the quantized features in place
+      if (version >= 2)
+      {
+        // a flag, then the rerank, the min and the step of each feature and the codes
+        long sectionSize = 8 + 16L * numColumns;
+        MappedByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(sectionSize, channel.size() - position));
+        if (section.getInt() == 1)
+        {
+          long numCodes = (long) numRows * numColumns;
+          if (numCodes > Integer.MAX_VALUE)
+            throw new IOException("The quantized features of the kNN snapshot " + filename + " take more than 2 GB");
+          if (position + sectionSize + numCodes > channel.size())
+            throw new IOException("The kNN snapshot " + filename + " is truncated");
+          rerank = section.getInt();
+          double[] min = new double[numColumns];
+          double[] step = new double[numColumns];
+          for (int j=0; j < numColumns; j++)
+            min[j] = section.getDouble();
+          for (int j=0; j < numColumns; j++)
+            step[j] = section.getDouble();
+          position = position + sectionSize;
+          codes = new kNNQuantizedMatrix(channel.map(FileChannel.MapMode.READ_ONLY, position, numCodes), numRows, numColumns, min, step);
+          position = position + numCodes;
+        }
+        else
+        {
+          position = position + 4;
+        }
+      }
+
+      // map the rest of the snapshot
+      if (channel.size() - position > Integer.MAX_VALUE)
+        throw new IOException("The weights, ids, labels and index of the kNN snapshot " + filename + " take more than 2 GB");
+      in = channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+    }
+    finally
+    {
+      file.close();
+    }
+
+    double[] featureWeights = new double[numColumns];
+    for (int j=0; j < numColumns; j++)
+      featureWeights[j] = in.getDouble();
+    int[] ids = new int[numRows];
+    for (int i=0; i < numRows; i++)
+      ids[i] = in.getInt();
+    int[] labels = new int[numRows];
+    for (int i=0; i < numRows; i++)
+      labels[i] = in.getInt();
+    kNNIndex index;
+    if (in.getInt() == 1)
+      index = kNNIndex.read(in, trainMatrix, ids, featureWeights);
+    else
+      index = kNNIndex.build(trainMatrix, ids, featureWeights);
+    kNNQuantizedSearch quantized = null;
+    if (codes != null)
+      quantized = new kNNQuantizedSearch(trainMatrix, codes, ids, featureWeights, rerank);
+    return new kNN(trainMatrix, ids, labels, featureWeights, index, quantized);
+  }
+
+  /**
+   * Start of this program.
+   * Builds a kNN with the first examples of the data file and saves it,
+   * quantized if the number of candidates ranked again per neighbor is given.
+  **/
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length != 3 && args.length != 4)
+    {
+      System.out.println("Wrong usage. Type java kNNSnapshot [data file] [training set size] [snapshot file] [rerank]");
+    }
+    else
+    {
+      DataSet dataFile = new DataSet(args[0]);
+      int trainSetSize = Integer.parseInt(args[1]);
+      kNN model = new kNN(dataFile, trainSetSize);
+      if (args.length == 4)
+        model.setQuantized(Integer.parseInt(args[3]));
+      model.save(args[2]);
+    }
+  }
+}
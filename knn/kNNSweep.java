@@ -0,0 +1,170 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+/**
+ * Evaluates the predictions of one query for every kernel width of kernel[]
+ * and every number of nearest neighbors of k[] in a single pass over its neighbors.
+ * The weight of a neighbor at distance d for the kernel width w is 1/exp(w*d),
+ * so exp(-d) is computed once per neighbor and raised to the integer
+ * widths by multiplication instead of calling Math.exp for each width.
+ * Holds the buffers of one thread so it should not be shared.
+**/
+public class kNNSweep
+{
+
+  private kNNHeap heap;             // the nearest neighbors of the query
+  private double[] expDist;         // exp(-d) of each neighbor
+  private double[] value;           // value (ie class label) of each neighbor
+  private int numNeighbors;         // number of neighbors loaded
+  private double[] sumWeightedValue;// weighted sum of the neighbors so far for each kernel width
+  private double[] sumAllWeight;    // sum of the weights of the neighbors so far for each kernel width
+  private int[] step;               // difference between consecutive kernel widths
+
+  public kNNSweep()
+  {
+    expDist = new double[16];
+    value = new double[16];
+    sumWeightedValue = new double[1];
+    sumAllWeight = new double[1];
+    step = new int[1];
+  }
+
+  /**
+   * Return the heap of this thread emptied and holding at most capacity neighbors
+  **/
+  public kNNHeap getHeap(int capacity)
+  {
+    if (heap == null || heap.capacity() != capacity)
+      heap = new kNNHeap(capacity);
+    heap.clear();
+    return heap;
+  }
+
+  /**
+   * Load the neighbors of the heap once sorted
+   * labels[i] is the class label of the example of index i.
+   * The distances of the heap are squared if squared is true.
+  **/
+  public void load(kNNHeap neighbors, int[] labels, boolean squared)
+  {
+    ensureCapacity(neighbors.size());
+    numNeighbors = neighbors.size();
+    double dist;
+    for (int n=0; n < numNeighbors; n++)
+    {
+      dist = neighbors.getDist(n);
+      if (squared)
+        dist = Math.sqrt(dist);
+      expDist[n] = Math.exp(-dist);
+      value[n] = labels[neighbors.getIndex(n)];
+    }
+  }
+
+  /**
+   * Load the first count neighbors in the order of the array
+   * skipping the example of id excludeId (-1 to skip none).
+   * Assumes their relative distance has been set.
+  **/
+  public void load(kNNExample[] neighbors, int excludeId, int count)
+  {
+    ensureCapacity(count);
+    numNeighbors = 0;
+    for (int i=0; i < neighbors.length && numNeighbors < count; i++)
+    {
+      if (neighbors[i].getId() == excludeId)
+        continue;
+      expDist[numNeighbors] = Math.exp(-neighbors[i].getRelativeDist());
+      value[numNeighbors] = neighbors[i].getClassLabel();
+      numNeighbors++;
+    }
+  }
+
+  /**
+   * Write into predictions[kernel.length][k.length] the weighted average of the
+   * values of the loaded neighbors for each kernel width and each number of neighbors.
+   * The numbers of neighbors greater than the number loaded are given the
+   * average of all the loaded neighbors (NaN if none were loaded).
+   * Assumes k[] is sorted. kernel[] is best sorted too (any order works).
+  **/
+  public void evaluate(int[] k, int[] kernel, double[][] predictions)
+  {
+    int numKernels = kernel.length;
+    if (step.length < numKernels)
+    {
+      step = new int[numKernels];
+      sumWeightedValue = new double[numKernels];
+      sumAllWeight = new double[numKernels];
+    }
+    for (int kernelIndex=0; kernelIndex < numKernels; kernelIndex++)
+    {
+      sumWeightedValue[kernelIndex] = 0;
+      sumAllWeight[kernelIndex] = 0;
+      if (kernelIndex == 0)
+        step[kernelIndex] = kernel[0];
+      else
+        step[kernelIndex] = kernel[kernelIndex] - kernel[kernelIndex-1];
+    }
+
+    int kIndex = 0;
+    double neighborWeight;
+    for (int neighborNo=0; neighborNo < numNeighbors && kIndex < k.length; neighborNo++)
+    {
+      // weight of the neighbor for each kernel width: exp(-d)^kernel[kernelIndex]
+      neighborWeight = 1;
+      for (int kernelIndex=0; kernelIndex < numKernels; kernelIndex++)
+      {
+        if (step[kernelIndex] >= 0)
+          neighborWeight = neighborWeight * power(expDist[neighborNo], step[kernelIndex]);
+        else
+          neighborWeight = power(expDist[neighborNo], kernel[kernelIndex]);
+        sumWeightedValue[kernelIndex] = sumWeightedValue[kernelIndex] + value[neighborNo] * neighborWeight;
+        sumAllWeight[kernelIndex] = sumAllWeight[kernelIndex] + neighborWeight;
+      }
+      // update results after having seen k[kIndex] - 1 neighbors
+      if (neighborNo == k[kIndex]-1)
+      {
+        for (int kernelIndex=0; kernelIndex < numKernels; kernelIndex++)
+          predictions[kernelIndex][kIndex] = sumWeightedValue[kernelIndex] / sumAllWeight[kernelIndex];
+        kIndex++;
+      }
+    }
+    for (; kIndex < k.length; kIndex++)
+    {
+      for (int kernelIndex=0; kernelIndex < numKernels; kernelIndex++)
+        predictions[kernelIndex][kIndex] = sumWeightedValue[kernelIndex] / sumAllWeight[kernelIndex];
+    }
+  }
+
+  /**
+   * Return x to the power of a non negative integer n
+  **/
+  private static double power(double x, int n)
+  {
+    if (n == 0)
+      return 1;
+    if (n == 1)
+      return x;
+    double result = 1;
+    while (n > 0)
+    {
+      if ((n & 1) == 1)
+        result = result * x;
+      x = x * x;
+      n = n >> 1;
+    }
+    return result;
+  }
+
+  /**
+   * Make room for count neighbors
+  **/
+  private void ensureCapacity(int count)
+  {
+    if (expDist.length < count)
+    {
+      expDist = new double[count];
+      value = new double[count];
+    }
+  }
+}
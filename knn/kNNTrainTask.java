@@ -0,0 +1,48 @@
+/**
+ * @author Alex Ksikes
+ **/
+
+import java.util.concurrent.*;
+
+/**
+ * Leave-one-out cross validation of a block of train examples of a kNN.
+ * Blocks larger than the grain are split in two halves tested in parallel.
+ * Returns the number correctly classified for each kernel width and each k,
+ * summed over the block.
+**/
+public class kNNTrainTask extends RecursiveTask
+{
+
+  private kNN knn;        // the kNN being trained
+  private int from;       // first query example of the block
+  private int to;         // last query example of the block (excluded)
+  private int grain;      // size under which the block is tested serially
+
+  public kNNTrainTask(kNN knn, int from, int to, int grain)
+  {
+    this.knn = knn;
+    this.from = from;
+    this.to = to;
+    this.grain = grain;
+  }
+
+  /**
+   * Test the block or split it and add up the counts of both halves
+  **/
+  protected Object compute()
+  {
+    if (to - from <= grain)
+      return knn.testLeftOut(from, to);
+
+    int mid = (from + to)/2;
+    kNNTrainTask leftTask = new kNNTrainTask(knn, from, mid, grain);
+    kNNTrainTask rightTask = new kNNTrainTask(knn, mid, to, grain);
+    leftTask.fork();
+    int[][] correct = (int[][]) rightTask.compute();
+    int[][] leftCorrect = (int[][]) leftTask.join();
+    for (int i=0; i < correct.length; i++)
+      for (int j=0; j < correct[i].length; j++)
+        correct[i][j] = correct[i][j] + leftCorrect[i][j];
+    return correct;
+  }
+}